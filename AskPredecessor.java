@@ -1,43 +1,25 @@
-import java.net.InetSocketAddress;
 
 /**
- * Ask predecessor thread that periodically asks for predecessor's keep-alive,
+ * Ask predecessor task that periodically asks for predecessor's keep-alive,
  * and delete predecessor if it's dead.
  * @author Chuan Xia
  *
  */
-public class AskPredecessor extends Thread {
-	
-	private Node local;
-	private boolean alive;
+public class AskPredecessor extends MaintenanceTask {
 	
 	public AskPredecessor(Node _local) {
-		local = _local;
-		alive = true;
+		super(_local, _local.getCheckPacer());
 	}
 	
 	@Override
-	public void run() {
-		while (alive) {
-			InetSocketAddress predecessor = local.getPredecessor();
-			if (predecessor != null) {
-				String response = Helper.sendRequest(predecessor, "KEEP");
-				if (response == null || !response.equals("ALIVE")) {
-					local.clearPredecessor();	
-				}
-
-			}
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	protected void round() {
+		NodeRef predecessor = local.getPredecessor();
+		if (predecessor != null) {
+			// only ping a predecessor recent traffic cannot vouch for
+			if (!FailureDetector.isTrusted(predecessor) && !Helper.ping(predecessor)) {
+				local.clearPredecessor();	
 			}
+
 		}
 	}
-	
-	public void toDie() {
-		alive = false;
-	}
 }
-
-
@@ -0,0 +1,157 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark class that builds a ring of nodes in this process, then fires
+ * many concurrent lookups at random nodes over the network and reports
+ * throughput, latency and the peak number of platform threads. Lookups are
+ * iterative (FINDSUCC), recursive (RLOOKUP) or both, one after the other
+ * on the same ring. Run it once per thread mode to compare them, e.g.
+ * java -Dchord.threads=platform Benchmark 32 20000 1000
+ * java -Dchord.threads=virtual Benchmark 32 20000 1000
+ * @author Chuan Xia
+ *
+ */
+
+public class Benchmark {
+
+	private static Helper helper;
+
+	public static void main (String[] args) throws Exception {
+
+		helper = new Helper();
+
+		// args: nodes, lookups, concurrent lookups, first port, mode
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 11000;
+		String mode = args.length > 4 ? args[4] : "both";
+
+		// build the ring, every node joins via the first one
+		InetAddress ip = InetAddress.getLoopbackAddress();
+		final ArrayList<Node> ring = new ArrayList<Node>();
+		final TreeMap<Long, NodeRef> owners = new TreeMap<Long, NodeRef>();
+		for (int i = 0; i < nodes; i++) {
+			Node node = new Node(new InetSocketAddress(ip, port+i));
+			if (!node.join(new InetSocketAddress(ip, port))) {
+				System.out.println("Node "+i+" cannot join the ring. Now exit.");
+				System.exit(0);
+			}
+			ring.add(node);
+			owners.put(node.getId(), node.getAddress());
+		}
+
+		// wait until every successor is right
+		System.out.println("Waiting for "+nodes+" nodes to be stable...");
+		while (!isStable(ring, owners)) {
+			Thread.sleep(500);
+		}
+
+		// run each mode on the same ring
+		if (!mode.equals("recursive"))
+			run("iterative", ring, owners, lookups, concurrency);
+		if (!mode.equals("iterative"))
+			run("recursive", ring, owners, lookups, concurrency);
+		System.out.println("\npeak platform threads:\t"+ManagementFactory.getThreadMXBean().getPeakThreadCount());
+		System.exit(0);
+	}
+
+	/**
+	 * Fire lookups at random nodes and print the results
+	 * @param mode: "iterative" (FINDSUCC) or "recursive" (RLOOKUP)
+	 * @param ring: all nodes
+	 * @param owners: all nodes by id
+	 * @param lookups: number of lookups
+	 * @param concurrency: lookups in flight at once
+	 * @throws InterruptedException
+	 */
+	private static void run (String mode, final ArrayList<Node> ring, final TreeMap<Long, NodeRef> owners,
+			final int lookups, int concurrency) throws InterruptedException {
+
+		// lookups run on the shared workers, so they use the selected threads
+		final byte type = mode.equals("recursive") ? Message.RLOOKUP : Message.FINDSUCC;
+		final long[] latency = new long[lookups];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger wrong = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong hops = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		long start = System.nanoTime();
+		for (int c = 0; c < concurrency; c++) {
+			final Random random = new Random(c);
+			Scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					int k = 0;
+					while ((k = next.getAndIncrement()) < lookups) {
+						long id = random.nextInt() & 0xffffffffL;
+						NodeRef target = ring.get(random.nextInt(ring.size())).getAddress();
+						long begin = System.nanoTime();
+						Message response = ConnectionPool.request(target.getAddress(), new Message(type, id));
+						latency[k] = System.nanoTime() - begin;
+						if (response == null || response.getAddress() == null)
+							failed.incrementAndGet();
+						else if (!response.getAddress().equals(ownerOf(owners, id)))
+							wrong.incrementAndGet();
+						if (response != null && response.getType() == Message.RFOUND)
+							hops.addAndGet(response.getList().length - 1);
+					}
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		// report
+		Arrays.sort(latency);
+		System.out.println("\nmode:\t\t\t"+mode);
+		System.out.println("threads:\t\t"+(Scheduler.isVirtual() ? "virtual" : "platform"));
+		System.out.println("nodes:\t\t\t"+ring.size());
+		System.out.println("lookups:\t\t"+lookups+" ("+concurrency+" concurrent)");
+		System.out.println("failed / wrong:\t\t"+failed.get()+" / "+wrong.get());
+		System.out.println("throughput:\t\t"+(long) (lookups / (elapsed / 1e9))+" lookups/s");
+		System.out.println("latency p50 / p99:\t"+latency[lookups / 2] / 1000+" / "
+				+latency[(int) (lookups * 0.99)] / 1000+" us");
+		if (type == Message.RLOOKUP)
+			System.out.println("average hops:\t\t"+String.format("%.2f", (double) hops.get() / lookups));
+	}
+
+	/**
+	 * Check if every node's successor is the next node on the ring
+	 * @param ring: all nodes
+	 * @param owners: all nodes by id
+	 * @return true if all successors are right
+	 */
+	private static boolean isStable (ArrayList<Node> ring, TreeMap<Long, NodeRef> owners) {
+		for (Node node : ring) {
+			NodeRef expected = ownerOf(owners, (node.getId() + 1) & 0xffffffffL);
+			if (!expected.equals(node.getSuccessor()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the node an id belongs to: the first node at or after it
+	 * @param owners: all nodes by id
+	 * @param id
+	 * @return owner
+	 */
+	private static NodeRef ownerOf (TreeMap<Long, NodeRef> owners, long id) {
+		Map.Entry<Long, NodeRef> e = owners.ceilingEntry(id);
+		if (e == null)
+			e = owners.firstEntry();
+		return e.getValue();
+	}
+}
@@ -36,7 +36,7 @@ public class Chord {
 		// determine if it's creating or joining a existing ring
 		// create, contact is this node itself
 		if (args.length == 1) {
-			m_contact = m_node.getAddress();
+			m_contact = m_node.getAddress().getAddress();
 		}
 		
 		// join, contact is another node
@@ -74,8 +74,8 @@ public class Chord {
 			String command = null;
 			command = userinput.next();
 			if (command.startsWith("quit")) {
-				m_node.stopAllThreads();
 				System.out.println("Leaving the ring...");
+				m_node.leave();
 				System.exit(0);
 				
 			}
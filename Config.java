@@ -0,0 +1,110 @@
+/**
+ * Startup options of a node, read from system properties so they can be
+ * given on the command line, e.g.
+ * java -Dchord.listener=nio Chord 8001
+ * @author Chuan Xia
+ *
+ */
+
+public class Config {
+
+	// "blocking" (one talker thread per connection) or "nio" (selector)
+	public static final String LISTENER = System.getProperty("chord.listener", "blocking");
+
+	// size of the worker pool that serves requests in nio mode
+	public static final int WORKERS = Integer.getInteger("chord.workers", 4);
+
+	// "binary" (negotiated frames, text as fallback) or "text"
+	public static final String WIRE = System.getProperty("chord.wire", "binary");
+
+	// milliseconds a peer stays trusted after it was last heard from,
+	// and stays dead after a request to it failed
+	public static final long TRUST_WINDOW = Long.getLong("chord.trust", 2000);
+
+	// number of successors each node keeps to fail over to
+	public static final int SUCCESSORS = Integer.getInteger("chord.successors", 4);
+
+	// milliseconds an asynchronous lookup waits for each hop
+	public static final long HOP_TIMEOUT = Long.getLong("chord.hop.timeout", 2000);
+
+	// most lookup results (owner ranges) each node caches, 0 disables,
+	// and milliseconds a result is kept at most
+	public static final int CACHE_SIZE = Integer.getInteger("chord.cache", 1024);
+	public static final long CACHE_TTL = Long.getLong("chord.cache.ttl", 10000);
+
+	// closest fingers an iterative lookup asks at once at each step,
+	// 1 asks one at a time
+	public static final int ALPHA = Integer.getInteger("chord.alpha", 1);
+
+	// milliseconds a recursive lookup waits for its owner before it
+	// falls back to an iterative lookup
+	public static final long LOOKUP_TIMEOUT = Long.getLong("chord.lookup.timeout", 5000);
+
+	// shortest and longest period in milliseconds of stabilize, 
+	// periods double while the ring is quiet and drop back on churn
+	public static final long STABILIZE_MIN = Long.getLong("chord.stabilize.min", 60);
+	public static final long STABILIZE_MAX = Long.getLong("chord.stabilize.max", 2000);
+
+	// same for fix fingers and ask predecessor
+	public static final long FIX_MIN = Long.getLong("chord.fix.min", 500);
+	public static final long FIX_MAX = Long.getLong("chord.fix.max", 8000);
+
+	// threads of the timer that hands due maintenance rounds to workers
+	public static final int TIMERS = Integer.getInteger("chord.timers", 1);
+
+	// "platform" or "virtual" (Java 21 or later) threads for talkers,
+	// request handlers and maintenance rounds
+	public static final String THREADS = System.getProperty("chord.threads", "platform");
+
+	// "heap" or "offheap" storage of the keys a node owns, and megabytes
+	// of each off-heap slab (a power of two)
+	public static final String STORE = System.getProperty("chord.store", "heap");
+	public static final int STORE_SLAB = Integer.getInteger("chord.store.slab", 8) << 20;
+
+	// successors each key is copied to besides its owner, 0 disables,
+	// and most writes sent to a replica in one message
+	public static final int REPLICAS = Integer.getInteger("chord.replicas", 2);
+	public static final int REPLICA_BATCH = Integer.getInteger("chord.replica.batch", 256);
+
+	// milliseconds a deleted key's tombstone is kept, so replicas see
+	// the delete instead of an older value
+	public static final long TOMBSTONE_TTL = Long.getLong("chord.tombstone.ttl", 60000);
+
+	// nodes a read is sent to at once, the owner and its first replicas
+	// (1 reads from the owner only), and answers that must agree, 0 for
+	// a majority of them
+	public static final int READ_REPLICAS = Integer.getInteger("chord.read.replicas", 1);
+	public static final int READ_QUORUM = Integer.getInteger("chord.read.quorum", 0);
+
+	/**
+	 * Check if the non-blocking listener is selected
+	 * @return true if listener mode is nio
+	 */
+	public static boolean useNioListener() {
+		return LISTENER.equalsIgnoreCase("nio");
+	}
+
+	/**
+	 * Check if virtual threads are selected
+	 * @return true if thread mode is virtual
+	 */
+	public static boolean useVirtualThreads() {
+		return THREADS.equalsIgnoreCase("virtual");
+	}
+
+	/**
+	 * Check if keys should be stored off the heap
+	 * @return true if store mode is offheap
+	 */
+	public static boolean useOffHeapStore() {
+		return STORE.equalsIgnoreCase("offheap");
+	}
+
+	/**
+	 * Check if binary frames should be negotiated with peers
+	 * @return true if wire format is binary
+	 */
+	public static boolean useBinaryWire() {
+		return WIRE.equalsIgnoreCase("binary");
+	}
+}
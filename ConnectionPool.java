@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of persistent connections, keyed by peer's socket address.
+ * A peer speaking binary frames gets one multiplexed connection shared by
+ * all requests to it; for a peer speaking text only, idle connections are
+ * kept and each one is reused by one request at a time. Connections idle
+ * for too long are evicted by a background thread, and a broken connection
+ * is detected on use and replaced by a fresh one.
+ * @author Chuan Xia
+ *
+ */
+
+public class ConnectionPool {
+
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int READ_TIMEOUT = 5000;
+	private static final long IDLE_TIMEOUT = 30000;
+	private static final int MAX_IDLE_PER_PEER = 8;
+
+	// milliseconds a peer that refused binary frames is spoken text to,
+	// before negotiation is tried again on its next new connection
+	private static final long TEXT_ONLY_TIMEOUT = 60000;
+
+	private static final ConcurrentHashMap<InetSocketAddress, ConcurrentLinkedDeque<PeerConnection>> idle =
+			new ConcurrentHashMap<InetSocketAddress, ConcurrentLinkedDeque<PeerConnection>>();
+
+	// multiplexed binary connection of each peer, and locks for opening them
+	private static final ConcurrentHashMap<InetSocketAddress, PeerConnection> multiplexed =
+			new ConcurrentHashMap<InetSocketAddress, PeerConnection>();
+	private static final ConcurrentHashMap<InetSocketAddress, Object> openLocks =
+			new ConcurrentHashMap<InetSocketAddress, Object>();
+
+	// peers that refused binary frames, and when they did
+	private static final ConcurrentHashMap<InetSocketAddress, Long> textOnly =
+			new ConcurrentHashMap<InetSocketAddress, Long>();
+
+	static {
+		Thread evictor = new Thread() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(IDLE_TIMEOUT / 2);
+					} catch (InterruptedException e) {
+						return;
+					}
+					evictIdle();
+				}
+			}
+		};
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/**
+	 * Send request to server over a pooled connection and read its reply
+	 * @param server
+	 * @param req: request
+	 * @return response, might be null if
+	 * (1) cannot connect to server
+	 * (2) connection broke or timed out
+	 * (3) server closed the connection without replying
+	 */
+	public static Message request (InetSocketAddress server, Message req) {
+
+		// share the multiplexed connection with all other requests to
+		// server; if it broke under this request it may have been a stale
+		// one, retry once on a fresh connection
+		if (Config.useBinaryWire() && !isTextOnly(server)) {
+			PeerConnection conn = shared(server);
+			if (conn != null) {
+				Message response = conn.call(req, READ_TIMEOUT);
+				if (response != null || !conn.isClosed())
+					return response;
+				conn = shared(server);
+				if (conn != null)
+					return conn.call(req, READ_TIMEOUT);
+			}
+			if (!isTextOnly(server))
+				return null;
+		}
+
+		// text only, take an idle connection for this request alone first,
+		// a stale one may fail here, then retry once on a fresh connection
+		PeerConnection conn = borrow(server);
+		if (conn != null) {
+			Message response = exchange(conn, req);
+			if (response != null)
+				return response;
+		}
+
+		try {
+			conn = new PeerConnection(server, CONNECT_TIMEOUT, READ_TIMEOUT);
+		} catch (IOException e) {
+			return null;
+		}
+		return exchange(conn, req);
+	}
+
+	/**
+	 * Send a request without waiting for its response. On an open binary
+	 * connection the request goes out at once and no thread waits for the
+	 * reply; otherwise the connection is opened, or the text exchange is
+	 * done, on a worker
+	 * @param server
+	 * @param req
+	 * @param timeout: milliseconds to wait for the response
+	 * @return future of the response, completed with null in the same
+	 * cases as request(server, req) or if timed out
+	 */
+	public static CompletableFuture<Message> requestAsync (final InetSocketAddress server, final Message req, long timeout) {
+		if (Config.useBinaryWire() && !isTextOnly(server)) {
+			final PeerConnection conn = multiplexed.get(server);
+			if (conn != null && !conn.isClosed()) {
+
+				// if it broke under this request it may have been a stale
+				// one, retry once like request(server, req) does
+				return conn.send(req).completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS)
+						.thenCompose(response -> response != null || !conn.isClosed()
+								? CompletableFuture.completedFuture(response)
+								: CompletableFuture.supplyAsync(() -> request(server, req), Scheduler.executor()));
+			}
+		}
+		return CompletableFuture.supplyAsync(() -> request(server, req), Scheduler.executor())
+				.completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the multiplexed connection to server, open and negotiate one if
+	 * there is none or the old one is closed
+	 * @param server
+	 * @return binary connection, null if server cannot be reached or
+	 * it speaks text only
+	 */
+	private static PeerConnection shared (InetSocketAddress server) {
+		PeerConnection conn = multiplexed.get(server);
+		if (conn != null && !conn.isClosed())
+			return conn;
+
+		// only one thread opens the connection, others wait for it
+		Object lock = openLocks.get(server);
+		if (lock == null) {
+			openLocks.putIfAbsent(server, new Object());
+			lock = openLocks.get(server);
+		}
+		synchronized (lock) {
+			conn = multiplexed.get(server);
+			if (conn != null && !conn.isClosed())
+				return conn;
+			try {
+				conn = new PeerConnection(server, CONNECT_TIMEOUT, READ_TIMEOUT);
+				if (conn.negotiate()) {
+					multiplexed.put(server, conn);
+					return conn;
+				}
+
+				// server refused and closed the connection, it speaks text only
+				conn.close();
+				textOnly.put(server, System.currentTimeMillis());
+			} catch (IOException e) {
+				if (conn != null)
+					conn.close();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Check if server refused binary frames lately. A refusal is not kept
+	 * for good: a peer closing the negotiation on a bad moment, or
+	 * restarted with a newer version, gets asked again once it expired
+	 * @param server
+	 * @return true if requests to server go as text
+	 */
+	private static boolean isTextOnly (InetSocketAddress server) {
+		Long since = textOnly.get(server);
+		if (since == null)
+			return false;
+		if (System.currentTimeMillis() - since < TEXT_ONLY_TIMEOUT)
+			return true;
+		textOnly.remove(server, since);
+		return false;
+	}
+
+	/**
+	 * Run one request on connection, return connection to pool if it
+	 * is still healthy, otherwise close it
+	 * @param conn
+	 * @param req
+	 * @return response, null if failed
+	 */
+	private static Message exchange (PeerConnection conn, Message req) {
+		Message response = null;
+		try {
+			response = conn.exchange(req);
+		} catch (IOException e) {
+			response = null;
+		}
+		if (response == null)
+			conn.close();
+		else
+			release(conn);
+		return response;
+	}
+
+	/**
+	 * Take an idle connection to server, expired ones are closed
+	 * @param server
+	 * @return idle connection, null if there is none
+	 */
+	private static PeerConnection borrow (InetSocketAddress server) {
+		ConcurrentLinkedDeque<PeerConnection> conns = idle.get(server);
+		if (conns == null)
+			return null;
+		long now = System.currentTimeMillis();
+		PeerConnection conn = null;
+		while ((conn = conns.pollFirst()) != null) {
+			if (!conn.isExpired(now, IDLE_TIMEOUT))
+				return conn;
+			conn.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Put a healthy connection back to its peer's idle list
+	 * @param conn
+	 */
+	private static void release (PeerConnection conn) {
+		ConcurrentLinkedDeque<PeerConnection> conns = idle.get(conn.getPeer());
+		if (conns == null) {
+			idle.putIfAbsent(conn.getPeer(), new ConcurrentLinkedDeque<PeerConnection>());
+			conns = idle.get(conn.getPeer());
+		}
+		if (conns.size() < MAX_IDLE_PER_PEER)
+			conns.offerFirst(conn);
+		else
+			conn.close();
+	}
+
+	/**
+	 * Close all connections that have been idle for too long
+	 */
+	private static void evictIdle () {
+		long now = System.currentTimeMillis();
+		for (PeerConnection conn : multiplexed.values()) {
+			if (conn.isExpired(now, IDLE_TIMEOUT)) {
+				multiplexed.remove(conn.getPeer(), conn);
+				conn.close();
+			}
+		}
+		for (ConcurrentLinkedDeque<PeerConnection> conns : idle.values()) {
+			Iterator<PeerConnection> it = conns.iterator();
+			while (it.hasNext()) {
+				PeerConnection conn = it.next();
+				if (conn.isExpired(now, IDLE_TIMEOUT)) {
+					it.remove();
+					conn.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timestamp-based failure detector shared by all nodes in this process.
+ * Every reply or failed request to a peer is reported here, together with
+ * requests a peer makes about itself, so routing can tell whether a peer
+ * is alive from traffic that already happened instead of pinging it:
+ * (1) trusted - heard from within the trust window, no failure since
+ * (2) dead - failed within the trust window, not heard from since
+ * (3) suspected - anything else, worth an active probe
+ * @author Chuan Xia
+ *
+ */
+
+public class FailureDetector {
+
+	private static final long START = System.nanoTime();
+
+	private static final ConcurrentHashMap<NodeRef, Record> records =
+			new ConcurrentHashMap<NodeRef, Record>();
+
+	/**
+	 * Report that peer answered or made a request
+	 * @param peer
+	 */
+	public static void heard (NodeRef peer) {
+		if (peer != null)
+			record(peer).lastHeard = now();
+	}
+
+	/**
+	 * Report that a request to peer failed
+	 * @param peer
+	 */
+	public static void failed (NodeRef peer) {
+		if (peer != null)
+			record(peer).lastFailed = now();
+	}
+
+	/**
+	 * Check if peer has answered recently and not failed since
+	 * @param peer
+	 * @return true if peer can be used without probing
+	 */
+	public static boolean isTrusted (NodeRef peer) {
+		Record r = records.get(peer);
+		if (r == null)
+			return false;
+		long heard = r.lastHeard;
+		return heard != 0 && heard - r.lastFailed > 0 && now() - heard < window();
+	}
+
+	/**
+	 * Check if a request to peer has failed recently and it has not been
+	 * heard from since
+	 * @param peer
+	 * @return true if peer should be treated as dead without probing
+	 */
+	public static boolean isDead (NodeRef peer) {
+		Record r = records.get(peer);
+		if (r == null)
+			return false;
+		long failed = r.lastFailed;
+		return failed != 0 && failed - r.lastHeard > 0 && now() - failed < window();
+	}
+
+	/**
+	 * Check if peer is neither trusted nor dead
+	 * @param peer
+	 * @return true if peer should be probed before use
+	 */
+	public static boolean isSuspected (NodeRef peer) {
+		return !isTrusted(peer) && !isDead(peer);
+	}
+
+	/**
+	 * Monotonic time in nanoseconds since this class was loaded, always
+	 * positive so 0 can mean never
+	 * @return current time
+	 */
+	private static long now() {
+		return System.nanoTime() - START + 1;
+	}
+
+	private static long window() {
+		return Config.TRUST_WINDOW * 1000000L;
+	}
+
+	private static Record record (NodeRef peer) {
+		Record r = records.get(peer);
+		if (r == null) {
+			records.putIfAbsent(peer, new Record());
+			r = records.get(peer);
+		}
+		return r;
+	}
+
+	/**
+	 * Last times a peer was heard from and failed, 0 if never
+	 */
+	private static class Record {
+		volatile long lastHeard;
+		volatile long lastFailed;
+	}
+}
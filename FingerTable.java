@@ -0,0 +1,87 @@
+/**
+ * Immutable snapshot of a node's finger table. Entries 1 to 32 live in a
+ * fixed array of node references, next to each entry's id relative to the
+ * local node, computed once when the entry is set. Changing an entry
+ * creates a new snapshot, so the owner can publish it through a volatile
+ * field and readers scan a consistent table without locks or boxing.
+ * @author Chuan Xia
+ *
+ */
+
+public class FingerTable {
+
+	private final long localId;
+	private final NodeRef[] nodes;
+	private final long[] relative;
+
+	/**
+	 * Constructor, an empty table
+	 * @param localId: local node's identifier
+	 */
+	public FingerTable (long localId) {
+		this(localId, new NodeRef[33], new long[33]);
+	}
+
+	private FingerTable (long localId, NodeRef[] nodes, long[] relative) {
+		this.localId = localId;
+		this.nodes = nodes;
+		this.relative = relative;
+	}
+
+	/**
+	 * Get ith finger
+	 * @param i: index in [1, 32]
+	 * @return ith finger, might be null
+	 */
+	public NodeRef get (int i) {
+		return nodes[i];
+	}
+
+	/**
+	 * Get ith finger's id relative to local node
+	 * @param i: index in [1, 32]
+	 * @return relative id, 0 if ith finger is null
+	 */
+	public long getRelativeId (int i) {
+		return relative[i];
+	}
+
+	/**
+	 * Copy this table with ith finger replaced
+	 * @param i: index in [1, 32]
+	 * @param value: new finger, might be null
+	 * @return new table
+	 */
+	public FingerTable with (int i, NodeRef value) {
+		if (nodes[i] == value)
+			return this;
+		NodeRef[] n = nodes.clone();
+		long[] r = relative.clone();
+		n[i] = value;
+		r[i] = value == null ? 0 : Helper.computeRelativeId(value.getId(), localId);
+		return new FingerTable(localId, n, r);
+	}
+
+	/**
+	 * Copy this table with all existence of a node removed
+	 * @param f: node to remove
+	 * @return new table
+	 */
+	public FingerTable without (NodeRef f) {
+		NodeRef[] n = null;
+		long[] r = null;
+		for (int i = 32; i > 0; i--) {
+			if (nodes[i] != null && nodes[i].equals(f)) {
+				if (n == null) {
+					n = nodes.clone();
+					r = relative.clone();
+				}
+				n[i] = null;
+				r[i] = 0;
+			}
+		}
+		if (n == null)
+			return this;
+		return new FingerTable(localId, n, r);
+	}
+}
@@ -1,41 +1,53 @@
-import java.net.InetSocketAddress;
-import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Fixfingers thread that periodically access a random entry in finger table 
- * and fix it.
+ * Fixfingers task that periodically fixes the whole finger table in one
+ * pass. Fingers are walked from 2 to 32; a lookup of a finger's start finds
+ * the node owning it, and every following start up to that node belongs
+ * to it too, so those fingers are set without a lookup of their own. A
+ * pass then costs one lookup per distinct finger instead of one per entry.
  * @author Chuan Xia
  *
  */
 
-public class FixFingers extends Thread{
+public class FixFingers extends MaintenanceTask {
 
-	private Node local;
-	Random random;
-	boolean alive;
+	// pass in progress, a round does not start another one
+	private volatile CompletableFuture<Void> pass;
 
 	public FixFingers (Node node) {
-		local = node;
-		alive = true;
-		random = new Random();
+		super(node, node.getFixPacer());
+		pass = CompletableFuture.completedFuture(null);
 	}
 
 	@Override
-	public void run() {
-		while (alive) {
-			int i = random.nextInt(31) + 2;
-			InetSocketAddress ithfinger = local.find_successor(Helper.ithStart(local.getId(), i));
-			local.updateFingers(i, ithfinger);
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+	protected void round() {
+		if (!pass.isDone())
+			return;
+		pass = fixFrom(2);
 	}
 
-	public void toDie() {
-		alive = false;
-	}
+	/**
+	 * Fix finger i and all fingers after it
+	 * @param i: index in [2, 33], 33 ends the pass
+	 * @return future completed when the pass is over
+	 */
+	private CompletableFuture<Void> fixFrom (final int i) {
+		if (i > 32)
+			return CompletableFuture.completedFuture(null);
+		final long start = Helper.ithStart(local.getId(), i);
+		return local.findSuccessorAsync(start)
+				.thenCompose(ithfinger -> {
+					local.updateFingers(i, ithfinger);
 
+					// following starts in (start, ithfinger] belong to ithfinger
+					long covered = Helper.computeRelativeId(ithfinger.getId(), start);
+					int j = i + 1;
+					while (j <= 32 && Helper.computeRelativeId(Helper.ithStart(local.getId(), j), start) <= covered) {
+						local.updateFingers(j, ithfinger);
+						j++;
+					}
+					return fixFrom(j);
+				});
+	}
 }
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * KeyStore on the Java heap. Ids are kept sorted in a list of blocks of
+ * primitive longs, each block at most BLOCK ids long and split in two when
+ * it is full, so finding an id is two binary searches and inserting one
+ * moves at most a block's worth of ids, with no boxing and no tree node
+ * per entry. Keys sharing an id (32-bit ids do collide at millions of
+ * keys) are chained in the id's slot.
+ * @author Chuan Xia
+ *
+ */
+
+public class HeapStore implements KeyStore {
+
+	// most ids a block holds
+	private static final int BLOCK = 1024;
+
+	// blocks in id order, never empty but for the only one
+	private final ArrayList<Block> blocks;
+	private int size;
+	private long bytes;
+
+	public HeapStore () {
+		blocks = new ArrayList<Block>();
+		blocks.add(new Block());
+	}
+
+	@Override
+	public synchronized byte[] get (long id, byte[] key) {
+		Block b = blocks.get(blockOf(id));
+		int i = b.indexOf(id);
+		if (i < 0)
+			return null;
+		for (Entry e = b.entries[i]; e != null; e = e.next) {
+			if (Arrays.equals(e.key, key))
+				return e.value;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized byte[] put (long id, byte[] key, byte[] value) {
+		int k = blockOf(id);
+		Block b = blocks.get(k);
+		int i = b.indexOf(id);
+
+		// id is here, replace key's value or chain the new key
+		if (i >= 0) {
+			for (Entry e = b.entries[i]; e != null; e = e.next) {
+				if (Arrays.equals(e.key, key)) {
+					byte[] old = e.value;
+					e.value = value;
+					bytes += value.length - old.length;
+					return old;
+				}
+			}
+			b.entries[i] = new Entry(key, value, b.entries[i]);
+		}
+
+		// new id, split the block first if it is full
+		else {
+			if (b.count == BLOCK) {
+				Block upper = b.split();
+				blocks.add(k + 1, upper);
+				if (id > upper.ids[0])
+					b = upper;
+				i = b.indexOf(id);
+			}
+			b.insert(-i - 1, id, new Entry(key, value, null));
+		}
+		size++;
+		bytes += key.length + value.length;
+		return null;
+	}
+
+	@Override
+	public synchronized byte[] remove (long id, byte[] key) {
+		int k = blockOf(id);
+		Block b = blocks.get(k);
+		int i = b.indexOf(id);
+		if (i < 0)
+			return null;
+		Entry prev = null;
+		for (Entry e = b.entries[i]; e != null; prev = e, e = e.next) {
+			if (!Arrays.equals(e.key, key))
+				continue;
+			if (prev != null)
+				prev.next = e.next;
+			else if (e.next != null)
+				b.entries[i] = e.next;
+
+			// last key of the id, drop the id, and the block if it empties
+			else {
+				b.delete(i);
+				if (b.count == 0 && blocks.size() > 1)
+					blocks.remove(k);
+			}
+			size--;
+			bytes -= e.key.length + e.value.length;
+			return e.value;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void scan (long after, long last, Visitor visitor) {
+		int k = blockOf(after);
+		int i = blocks.get(k).indexOf(after);
+		i = i >= 0 ? i + 1 : -i - 1;
+		for (; k < blocks.size(); k++, i = 0) {
+			Block b = blocks.get(k);
+			for (; i < b.count; i++) {
+				if (b.ids[i] > last)
+					return;
+				boolean go_on = true;
+				for (Entry e = b.entries[i]; e != null; e = e.next) {
+					go_on &= visitor.visit(b.ids[i], e.key, e.value);
+				}
+				if (!go_on)
+					return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized int size () {
+		return size;
+	}
+
+	@Override
+	public synchronized long bytes () {
+		return bytes;
+	}
+
+	/**
+	 * Get the block id belongs in: the last one starting at or before id
+	 * @param id
+	 * @return index of the block, 0 if id is before all blocks
+	 */
+	private int blockOf (long id) {
+		int low = 0;
+		int high = blocks.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (blocks.get(mid).ids[0] <= id)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Sorted ids and their entries
+	 */
+	private static class Block {
+		long[] ids;
+		Entry[] entries;
+		int count;
+
+		Block () {
+			ids = new long[BLOCK];
+			entries = new Entry[BLOCK];
+		}
+
+		/**
+		 * Binary search id
+		 * @param id
+		 * @return index of id, or (-(insertion point) - 1) if absent
+		 */
+		int indexOf (long id) {
+			return Arrays.binarySearch(ids, 0, count, id);
+		}
+
+		void insert (int i, long id, Entry e) {
+			System.arraycopy(ids, i, ids, i + 1, count - i);
+			System.arraycopy(entries, i, entries, i + 1, count - i);
+			ids[i] = id;
+			entries[i] = e;
+			count++;
+		}
+
+		void delete (int i) {
+			System.arraycopy(ids, i + 1, ids, i, count - i - 1);
+			System.arraycopy(entries, i + 1, entries, i, count - i - 1);
+			count--;
+			entries[count] = null;
+		}
+
+		/**
+		 * Move the upper half of this block into a new block
+		 * @return new block
+		 */
+		Block split () {
+			Block upper = new Block();
+			int half = count / 2;
+			upper.count = count - half;
+			System.arraycopy(ids, half, upper.ids, 0, upper.count);
+			System.arraycopy(entries, half, upper.entries, 0, upper.count);
+			Arrays.fill(entries, half, count, null);
+			count = half;
+			return upper;
+		}
+	}
+
+	/**
+	 * A key and its value, chained with other keys of the same id
+	 */
+	private static class Entry {
+		final byte[] key;
+		byte[] value;
+		Entry next;
+
+		Entry (byte[] key, byte[] value, Entry next) {
+			this.key = key;
+			this.value = value;
+			this.next = next;
+		}
+	}
+}
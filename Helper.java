@@ -2,14 +2,15 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A helper method that does the following things:
@@ -30,6 +31,19 @@ public class Helper {
 
 	private static HashMap<Integer, Long> powerOfTwo = null;
 
+	// SHA1 digest of each thread, created once instead of per hash
+	private static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	};
+
 	/**
 	 * Constructor
 	 */
@@ -63,6 +77,15 @@ public class Helper {
 		return hashHashCode(i);
 	}
 
+	/**
+	 * Compute a stored key's 32 bit identifier, the same as its string's
+	 * @param key: key in UTF-8
+	 * @return 32-bit identifier in long type
+	 */
+	public static long hashKey (byte[] key) {
+		return hashString(new String(key, StandardCharsets.UTF_8));
+	}
+
 	/**
 	 * Compute a 32 bit integer's identifier
 	 * @param i: integer
@@ -77,14 +100,8 @@ public class Helper {
 		hashbytes[2] = (byte) (i >> 8);
 		hashbytes[3] = (byte) (i /*>> 0*/);
 
-		// try to create SHA1 digest
-		MessageDigest md =  null;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		// get this thread's SHA1 digest
+		MessageDigest md = sha1.get();
 
 		// successfully created SHA1 digest
 		// try to convert byte[4] 
@@ -134,7 +151,19 @@ public class Helper {
 	 * @return 
 	 */
 	public static String hexIdAndPosition (InetSocketAddress addr) {
-		long hash = hashSocketAddress(addr);
+		return hexIdAndPosition(hashSocketAddress(addr));
+	}
+
+	/**
+	 * Compute a node's hex id and its approximate position in string
+	 * @param node
+	 * @return 
+	 */
+	public static String hexIdAndPosition (NodeRef node) {
+		return hexIdAndPosition(node.getId());
+	}
+
+	private static String hexIdAndPosition (long hash) {
 		return (longTo8DigitHex(hash)+" ("+hash*100/Helper.getPowerOfTwo(32)+"%)");
 	}
 
@@ -176,7 +205,7 @@ public class Helper {
 	/**
 	 * Generate requested address by sending request to server
 	 * @param server
-	 * @param req: request
+	 * @param req: request in text form
 	 * @return generated socket address, 
 	 * might be null if 
 	 * (1) invalid input
@@ -189,9 +218,36 @@ public class Helper {
 		if (server == null || req == null) {
 			return null;
 		}
+		NodeRef ret = requestAddress(NodeRef.of(server), Message.parseText(req));
+		if (ret == null)
+			return null;
+		return ret.getAddress();
+	}
+
+	/**
+	 * Generate requested address by sending request to server
+	 * @param server
+	 * @param req: request
+	 * @return generated socket address, 
+	 * might be null if 
+	 * (1) invalid input
+	 * (2) response is null (typically cannot send request)
+	 * (3) response carries no address
+	 */
+	public static NodeRef requestAddress (NodeRef server, Message req) {
 
 		// send request to server
-		String response = sendRequest(server, req);
+		return addressOf(server, request(server, req));
+	}
+
+	/**
+	 * Get the address carried by server's response
+	 * @param server
+	 * @param response
+	 * @return address, server itself if it found nothing, 
+	 * null if response is null
+	 */
+	public static NodeRef addressOf (NodeRef server, Message response) {
 
 		// if response is null, return null
 		if (response == null) {
@@ -199,25 +255,23 @@ public class Helper {
 		}
 
 		// or server cannot find anything, return server itself 
-		else if (response.startsWith("NOTHING"))
+		else if (response.getType() == Message.NOTHING)
 			return server;
 
-		// server find something, 
-		// using response to create, might fail then and return null
-		else {
-			InetSocketAddress ret = Helper.createSocketAddress(response.split("_")[1]);
-			return ret;
-		}
+		// server find something
+		else
+			return response.getAddress();
 	}
 
 	/**
-	 * Send request to server and read response
+	 * Send request to server and read response over a pooled 
+	 * persistent connection
 	 * @param server
-	 * @param request
-	 * @return response, might be null if
+	 * @param request in text form
+	 * @return response in text form, might be null if
 	 * (1) invalid input
 	 * (2) cannot open socket or write request to it
-	 * (3) response read by inputStreamToString() is null
+	 * (3) connection broke or no response arrived in time
 	 */
 	public static String sendRequest(InetSocketAddress server, String req) {
 
@@ -225,43 +279,108 @@ public class Helper {
 		if (server == null || req == null)
 			return null;
 
-		Socket talkSocket = null;
+		Message response = request(NodeRef.of(server), Message.parseText(req));
+		if (response == null)
+			return null;
+		return response.toText();
+	}
+
+	/**
+	 * Send request to server and read response over a pooled 
+	 * persistent connection
+	 * @param server
+	 * @param request
+	 * @return response, might be null if
+	 * (1) invalid input
+	 * (2) cannot open socket or write request to it
+	 * (3) connection broke or no response arrived in time
+	 */
+	public static Message request(NodeRef server, Message req) {
 
-		// try to open talkSocket, output request to this socket
-		// return null if fail to do so
-		try {
-			talkSocket = new Socket(server.getAddress(),server.getPort());
-			PrintStream output = new PrintStream(talkSocket.getOutputStream());
-			output.println(req);
-		} catch (IOException e) {
-			//System.out.println("\nCannot send request to "+server.toString()+"\nRequest is: "+req+"\n");
+		// invalid input
+		if (server == null || req == null)
 			return null;
-		}
 
-		// sleep for a short time, waiting for response
-		try {
-			Thread.sleep(60);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		// every outcome feeds the failure detector
+		Message response = ConnectionPool.request(server.getAddress(), req);
+		if (response != null)
+			FailureDetector.heard(server);
+		else
+			FailureDetector.failed(server);
+		return response;
+	}
 
-		// get input stream, try to read something from it
-		InputStream input = null;
-		try {
-			input = talkSocket.getInputStream();
-		} catch (IOException e) {
-			System.out.println("Cannot get input stream from "+server.toString()+"\nRequest is: "+req+"\n");
-		}
-		String response = Helper.inputStreamToString(input);
+	/**
+	 * Send request to server without waiting for its response, see 
+	 * request(NodeRef, Message)
+	 * @param server
+	 * @param req
+	 * @return future of the response, completed with null if the request
+	 * failed or timed out after Config.HOP_TIMEOUT
+	 */
+	public static CompletableFuture<Message> requestAsync(NodeRef server, Message req) {
+		return requestAsync(server, req, Config.HOP_TIMEOUT);
+	}
 
-		// try to close socket
-		try {
-			talkSocket.close();
-		} catch (IOException e) {
-			throw new RuntimeException(
-					"Cannot close socket", e);
+	/**
+	 * Send request to server without waiting for its response
+	 * @param server
+	 * @param req
+	 * @param timeout: milliseconds to wait for the response
+	 * @return future of the response, completed with null if the request
+	 * failed or timed out
+	 */
+	public static CompletableFuture<Message> requestAsync(final NodeRef server, Message req, long timeout) {
+
+		// invalid input
+		if (server == null || req == null)
+			return CompletableFuture.completedFuture(null);
+
+		// every outcome feeds the failure detector
+		return ConnectionPool.requestAsync(server.getAddress(), req, timeout)
+				.thenApply(response -> {
+					if (response != null)
+						FailureDetector.heard(server);
+					else
+						FailureDetector.failed(server);
+					return response;
+				});
+	}
+
+	/**
+	 * Match ids with owners returned by a batch lookup: an id belongs to
+	 * the first owner at or after it on the ring
+	 * @param ids
+	 * @param owners: distinct owners of all ids, in any order
+	 * @return owner of each id, in the order of ids; all null if owners
+	 * is empty
+	 */
+	public static NodeRef[] ownersOf(long[] ids, NodeRef[] owners) {
+		NodeRef[] ret = new NodeRef[ids.length];
+		if (owners.length == 0)
+			return ret;
+		NodeRef[] sorted = owners.clone();
+		Arrays.sort(sorted, (a, b) -> Long.compare(a.getId(), b.getId()));
+		long[] positions = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++)
+			positions[i] = sorted[i].getId();
+		for (int i = 0; i < ids.length; i++) {
+			int k = Arrays.binarySearch(positions, ids[i]);
+			if (k < 0)
+				k = -k - 1;
+			ret[i] = sorted[k == sorted.length ? 0 : k];
 		}
-		return response;
+		return ret;
+	}
+
+	/**
+	 * Check if server answers keep-alive
+	 * @param server
+	 * @return true if server replied "ALIVE"
+	 */
+	public static boolean ping(NodeRef server) {
+		Message response = request(server, new Message(Message.KEEP));
+		return response != null && response.getType() == Message.ALIVE;
 	}
 
 	/**
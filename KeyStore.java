@@ -0,0 +1,74 @@
+/**
+ * Local storage of the key-value pairs a node owns. Every key is stored
+ * under its ring id (Helper.hashKey), which callers pass in since they
+ * compute it anyway to route the key; entries are kept in id order so a
+ * range of the ring can be found without scanning the whole store.
+ * @author Chuan Xia
+ *
+ */
+
+public interface KeyStore {
+
+	/**
+	 * Get the value of a key
+	 * @param id: key's ring id
+	 * @param key
+	 * @return value, null if key is not stored
+	 */
+	public byte[] get (long id, byte[] key);
+
+	/**
+	 * Store a value under a key, replacing the old one
+	 * @param id: key's ring id
+	 * @param key
+	 * @param value
+	 * @return old value, null if key was not stored
+	 */
+	public byte[] put (long id, byte[] key, byte[] value);
+
+	/**
+	 * Remove a key
+	 * @param id: key's ring id
+	 * @param key
+	 * @return removed value, null if key was not stored
+	 */
+	public byte[] remove (long id, byte[] key);
+
+	/**
+	 * Visit keys with ids in (after, last] in id order, e.g. to hand a 
+	 * range of the ring over to another node a page at a time. The store
+	 * must not be changed from the visitor
+	 * @param after: ids greater than this, -1 for all
+	 * @param last: ids up to this
+	 * @param visitor: told every key, stops the scan once the keys of the
+	 * current id are visited
+	 */
+	public void scan (long after, long last, Visitor visitor);
+
+	/**
+	 * Get number of keys stored
+	 * @return number of keys
+	 */
+	public int size ();
+
+	/**
+	 * Get bytes of keys and values stored
+	 * @return bytes
+	 */
+	public long bytes ();
+
+	/**
+	 * Receives the keys of a scan
+	 */
+	public interface Visitor {
+
+		/**
+		 * Visit a key
+		 * @param id: key's ring id
+		 * @param key
+		 * @param value
+		 * @return false to stop the scan after the keys of this id
+		 */
+		public boolean visit (long id, byte[] key, byte[] value);
+	}
+}
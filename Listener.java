@@ -1,5 +1,4 @@
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
@@ -14,12 +13,12 @@ public class Listener extends Thread {
 
 	private Node local;
 	private ServerSocket serverSocket;
-	private boolean alive;
+	private volatile boolean alive;
 
 	public Listener (Node n) {
 		local = n;
 		alive = true;
-		InetSocketAddress localAddress = local.getAddress();
+		NodeRef localAddress = local.getAddress();
 		int port = localAddress.getPort();
 
 		//open server/listener socket
@@ -37,16 +36,25 @@ public class Listener extends Thread {
 			try {
 				talkSocket = serverSocket.accept();
 			} catch (IOException e) {
+
+				// socket closed by toDie
+				if (!alive)
+					return;
 				throw new RuntimeException(
 						"Cannot accepting connection", e);
 			}
 
 			//new talker
-			new Thread(new Talker(talkSocket, local)).start();
+			Scheduler.execute(new Talker(talkSocket, local));
 		}
 	}
 
 	public void toDie() {
 		alive = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// nothing to do, listener is gone anyway
+		}
 	}
 }
@@ -0,0 +1,192 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bounded cache of lookup results. A lookup that found id's predecessor
+ * pre and its successor owner has learned that every id in (pre, owner]
+ * belongs to owner, so the range is kept, keyed by owner's id, and later
+ * lookups of any id in it are answered without a network round trip.
+ * Ranges are dropped when they get old, when the cache is full (least
+ * recently used first), and as soon as the node sees a change in the ring
+ * that affects them: a node showing up inside a range splits it, and an
+ * owner found dead no longer owns it. Joins inside a range are often seen
+ * by its owner only, so the node confirms a hit with the owner before
+ * using it (see Node.cachedOwner). Hits are counted by the node once
+ * confirmed, hits the owner does not confirm are counted apart.
+ * @author Chuan Xia
+ *
+ */
+
+public class LookupCache {
+
+	private final int capacity;
+	private final long ttl;
+
+	// ranges by owner's id, and the same ranges in access order
+	private final TreeMap<Long, Range> ranges;
+	private final LinkedHashMap<Long, Range> lru;
+
+	private long hits;
+	private long misses;
+	private long refuted;
+
+	/**
+	 * Constructor
+	 * @param capacity: most ranges kept, 0 disables the cache
+	 * @param ttl: milliseconds a range is kept at most
+	 */
+	public LookupCache (int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		ranges = new TreeMap<Long, Range>();
+		lru = new LinkedHashMap<Long, Range>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<Long, Range> eldest) {
+				if (size() <= LookupCache.this.capacity)
+					return false;
+				ranges.remove(eldest.getKey());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Get the cached owner of id
+	 * @param id
+	 * @return owner, null if no fresh range holds id
+	 */
+	public synchronized NodeRef get (long id) {
+		if (capacity <= 0)
+			return null;
+		Range r = rangeOf(id);
+		if (r == null || !r.contains(id))
+			return null;
+		if (r.expires - System.currentTimeMillis() < 0) {
+			remove(r);
+			return null;
+		}
+		lru.get(r.owner.getId());
+		return r.owner;
+	}
+
+	/**
+	 * Count a lookup answered from the cache, its owner confirmed
+	 */
+	public synchronized void hit() {
+		hits++;
+	}
+
+	/**
+	 * Count a lookup the cache had no usable owner for
+	 */
+	public synchronized void miss() {
+		misses++;
+	}
+
+	/**
+	 * Count a cached owner that did not confirm it owns the id, so a 
+	 * lookup was needed after all
+	 */
+	public synchronized void refuted() {
+		refuted++;
+	}
+
+	/**
+	 * Remember that ids in (pre, owner] belong to owner
+	 * @param pre: owner's predecessor
+	 * @param owner
+	 */
+	public synchronized void put (NodeRef pre, NodeRef owner) {
+		if (capacity <= 0 || pre == null || owner == null || pre.equals(owner))
+			return;
+		Range r = new Range(pre.getId(), owner, System.currentTimeMillis() + ttl);
+
+		// drop ranges ending inside the new one, they are stale
+		Range old = null;
+		while ((old = rangeOf((pre.getId() + 1) & 0xFFFFFFFFL)) != null
+				&& r.contains(old.owner.getId()) && !old.owner.equals(owner)) {
+			remove(old);
+		}
+		ranges.put(owner.getId(), r);
+		lru.put(owner.getId(), r);
+	}
+
+	/**
+	 * Node n is alive: a range it falls strictly inside is wrong now
+	 * @param n
+	 */
+	public synchronized void seen (NodeRef n) {
+		if (n == null || ranges.isEmpty())
+			return;
+		Range r = rangeOf(n.getId());
+		if (r != null && r.contains(n.getId()) && !r.owner.equals(n))
+			remove(r);
+	}
+
+	/**
+	 * Node n is dead: the range it owns belongs to another node now
+	 * @param n
+	 */
+	public synchronized void gone (NodeRef n) {
+		if (n == null)
+			return;
+		Range r = ranges.get(n.getId());
+		if (r != null && r.owner.equals(n))
+			remove(r);
+	}
+
+	public synchronized int size() {
+		return ranges.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getRefuted() {
+		return refuted;
+	}
+
+	/**
+	 * Get the range that might hold id: the first one ending at or after
+	 * id, wrapping around the ring
+	 * @param id
+	 * @return range, null if cache is empty
+	 */
+	private Range rangeOf (long id) {
+		Map.Entry<Long, Range> e = ranges.ceilingEntry(id);
+		if (e == null)
+			e = ranges.firstEntry();
+		return e == null ? null : e.getValue();
+	}
+
+	private void remove (Range r) {
+		ranges.remove(r.owner.getId());
+		lru.remove(r.owner.getId());
+	}
+
+	/**
+	 * Ids in (low, owner's id] belong to owner
+	 */
+	private static class Range {
+		final long low;
+		final NodeRef owner;
+		final long expires;
+
+		Range (long low, NodeRef owner, long expires) {
+			this.low = low;
+			this.owner = owner;
+			this.expires = expires;
+		}
+
+		boolean contains (long id) {
+			long relative = Helper.computeRelativeId(id, low);
+			return relative > 0 && relative <= Helper.computeRelativeId(owner.getId(), low);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic maintenance task of a node, run on the shared scheduler
+ * instead of a thread of its own. After every round the next one is
+ * scheduled after the period its pacer gives; churn brings a waiting
+ * round forward, and toDie cancels it.
+ * @author Chuan Xia
+ *
+ */
+
+public abstract class MaintenanceTask implements Runnable {
+
+	protected Node local;
+	private Pacer pacer;
+	private volatile boolean alive;
+	private boolean running;
+	private ScheduledFuture<?> next;
+
+	public MaintenanceTask (Node _local, Pacer _pacer) {
+		local = _local;
+		pacer = _pacer;
+		alive = true;
+		running = false;
+		next = null;
+		pacer.setOnChurn(new Runnable() {
+			@Override
+			public void run() {
+				wake();
+			}
+		});
+	}
+
+	/**
+	 * Do one round of maintenance
+	 */
+	protected abstract void round();
+
+	/**
+	 * Schedule the first round
+	 */
+	public void start() {
+		schedule(0);
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (!alive || running)
+				return;
+			running = true;
+			next = null;
+		}
+		try {
+			round();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		synchronized (this) {
+			running = false;
+			schedule(pacer.next());
+		}
+	}
+
+	/**
+	 * Bring a waiting round forward to the shortest period
+	 */
+	private synchronized void wake() {
+		if (!alive || running || next == null)
+			return;
+		if (next.getDelay(TimeUnit.MILLISECONDS) > pacer.getMin())
+			schedule(pacer.getMin());
+	}
+
+	private synchronized void schedule(long delay) {
+		if (!alive)
+			return;
+		if (next != null)
+			next.cancel(false);
+		next = Scheduler.schedule(this, delay);
+	}
+
+	/**
+	 * Stop this task, cancel its waiting round
+	 */
+	public synchronized void toDie() {
+		alive = false;
+		if (next != null)
+			next.cancel(false);
+		next = null;
+	}
+}
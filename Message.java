@@ -0,0 +1,469 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * A request or response exchanged between nodes. It can be written in two
+ * forms:
+ * (1) text - one ASCII line like "FINDSUCC_1234" or "MYSUCC_/10.0.0.1:8001",
+ * understood by every node and used by Query
+ * (2) binary - a length-prefixed frame, negotiated per connection with the
+ * "BINARY_<version>" line, holding the opcode, a fixed-width 64-bit id
+ * and a raw IPv4/IPv6 address and port, so no string building, parsing or
+ * address lookup is needed on the hot path. Every frame carries a request
+ * id that its reply echoes, so one connection can carry many requests in
+ * flight and replies may come back in any order.
+ * Frame layout: int length (of the rest) | byte opcode | int request id |
+ * long id | address | short list length | list of addresses | 
+ * int ids length | ids | key | value, where each address is byte address
+ * length (0, 4 or 16) | address bytes | short port, and key and value are
+ * int length (-1 if absent) | bytes. In text form keys and values are
+ * written in base64.
+ * @author Chuan Xia
+ *
+ */
+
+public class Message {
+
+	// binary protocol version, sent in the negotiation line
+	public static final int VERSION = 11;
+	public static final String HELLO = "BINARY_"+VERSION;
+	public static final String HELLO_OK = "BINARY_OK";
+
+	// largest frame body accepted from a peer
+	public static final int MAX_FRAME = 16 << 20;
+
+	// opcodes
+	public static final byte CLOSEST = 1;
+	public static final byte MYCLOSEST = 2;
+	public static final byte YOURSUCC = 3;
+	public static final byte MYSUCC = 4;
+	public static final byte YOURPRE = 5;
+	public static final byte MYPRE = 6;
+	public static final byte FINDSUCC = 7;
+	public static final byte FOUNDSUCC = 8;
+	public static final byte IAMPRE = 9;
+	public static final byte NOTIFIED = 10;
+	public static final byte KEEP = 11;
+	public static final byte ALIVE = 12;
+	public static final byte NOTHING = 13;
+	public static final byte YOURSUCCLIST = 14;
+	public static final byte MYSUCCLIST = 15;
+	public static final byte RFINDSUCC = 16;
+	public static final byte RFOUND = 17;
+	public static final byte RLOOKUP = 18;
+	public static final byte ACCEPTED = 19;
+	public static final byte CLOSESTLIST = 20;
+	public static final byte MYCLOSESTLIST = 21;
+	public static final byte FINDSUCCS = 22;
+	public static final byte FOUNDSUCCS = 23;
+	public static final byte YOURFINGERS = 24;
+	public static final byte MYFINGERS = 25;
+	public static final byte PUT = 26;
+	public static final byte GET = 27;
+	public static final byte DEL = 28;
+	public static final byte STORED = 29;
+	public static final byte VALUE = 30;
+	public static final byte DELETED = 31;
+	public static final byte GIVEKEYS = 32;
+	public static final byte LEAVING = 33;
+	public static final byte REPLICATE = 34;
+	public static final byte READ = 35;
+	public static final byte VERSIONED = 36;
+
+	// most candidates a CLOSESTLIST reply carries
+	public static final int MAX_CANDIDATES = 8;
+
+	// text names, indexed by opcode
+	private static final String[] NAMES = {null, "CLOSEST", "MYCLOSEST", "YOURSUCC", "MYSUCC", "YOURPRE",
+		"MYPRE", "FINDSUCC", "FOUNDSUCC", "IAMPRE", "NOTIFIED", "KEEP", "ALIVE", "NOTHING", "YOURSUCCLIST",
+		"MYSUCCLIST", "RFINDSUCC", "RFOUND", "RLOOKUP", "ACCEPTED", "CLOSESTLIST", "MYCLOSESTLIST",
+		"FINDSUCCS", "FOUNDSUCCS", "YOURFINGERS", "MYFINGERS", "PUT", "GET",
+		"DEL", "STORED", "VALUE", "DELETED", "GIVEKEYS", "LEAVING", "REPLICATE", "READ",
+		"VERSIONED"};
+
+	// which opcodes carry an id, an address, a list, ids, a key or a value
+	// in text form
+	private static final boolean[] HAS_ID = new boolean[NAMES.length];
+	private static final boolean[] HAS_ADDRESS = new boolean[NAMES.length];
+	private static final boolean[] HAS_LIST = new boolean[NAMES.length];
+	private static final boolean[] HAS_IDS = new boolean[NAMES.length];
+	private static final boolean[] HAS_KEY = new boolean[NAMES.length];
+	private static final boolean[] HAS_VALUE = new boolean[NAMES.length];
+	static {
+		HAS_ID[CLOSEST] = true;
+		HAS_ID[FINDSUCC] = true;
+		HAS_ADDRESS[MYCLOSEST] = true;
+		HAS_ADDRESS[MYSUCC] = true;
+		HAS_ADDRESS[MYPRE] = true;
+		HAS_ADDRESS[FOUNDSUCC] = true;
+		HAS_ADDRESS[IAMPRE] = true;
+		HAS_LIST[MYSUCCLIST] = true;
+
+		// recursive lookup: id looked up, origin or owner, path so far
+		HAS_ID[RFINDSUCC] = true;
+		HAS_ADDRESS[RFINDSUCC] = true;
+		HAS_LIST[RFINDSUCC] = true;
+		HAS_ID[RFOUND] = true;
+		HAS_ADDRESS[RFOUND] = true;
+		HAS_LIST[RFOUND] = true;
+		HAS_ID[RLOOKUP] = true;
+
+		// parallel lookup: id looked up; successor and closest fingers
+		HAS_ID[CLOSESTLIST] = true;
+		HAS_ADDRESS[MYCLOSESTLIST] = true;
+		HAS_LIST[MYCLOSESTLIST] = true;
+
+		// batch lookup: ids looked up; distinct owners
+		HAS_IDS[FINDSUCCS] = true;
+		HAS_LIST[FOUNDSUCCS] = true;
+
+		// join: every node the successor knows
+		HAS_LIST[MYFINGERS] = true;
+
+		// storage: key, value and the node that forwarded it to its owner
+		HAS_KEY[PUT] = true;
+		HAS_VALUE[PUT] = true;
+		HAS_LIST[PUT] = true;
+		HAS_KEY[GET] = true;
+		HAS_LIST[GET] = true;
+		HAS_KEY[DEL] = true;
+		HAS_LIST[DEL] = true;
+		HAS_VALUE[VALUE] = true;
+
+		// handoff: ids of a page of keys, and its keys and values packed;
+		// leaving node and who replaces it
+		HAS_VALUE[GIVEKEYS] = true;
+		HAS_IDS[GIVEKEYS] = true;
+		HAS_ADDRESS[LEAVING] = true;
+		HAS_LIST[LEAVING] = true;
+
+		// replication: ids of a batch of writes, keys and values packed
+		HAS_VALUE[REPLICATE] = true;
+		HAS_IDS[REPLICATE] = true;
+
+		// quorum read: key; value and its version as the only id
+		HAS_KEY[READ] = true;
+		HAS_VALUE[VERSIONED] = true;
+		HAS_IDS[VERSIONED] = true;
+	}
+
+	private static final NodeRef[] EMPTY = new NodeRef[0];
+	private static final long[] NO_IDS = new long[0];
+
+	private byte type;
+	private int reqId;
+	private long id;
+	private NodeRef address;
+	private NodeRef[] list = EMPTY;
+	private long[] ids = NO_IDS;
+	private byte[] key;
+	private byte[] value;
+
+	public Message (byte type) {
+		this(type, 0, null);
+	}
+
+	public Message (byte type, long id) {
+		this(type, id, null);
+	}
+
+	public Message (byte type, NodeRef address) {
+		this(type, 0, address);
+	}
+
+	public Message (byte type, NodeRef[] list) {
+		this(type, 0, null);
+		this.list = list;
+	}
+
+	public Message (byte type, long[] ids) {
+		this(type, 0, null);
+		this.ids = ids;
+	}
+
+	public Message (byte type, long id, NodeRef address, NodeRef[] list) {
+		this(type, id, address);
+		this.list = list;
+	}
+
+	public Message (byte type, long[] ids, byte[] value) {
+		this(type, ids);
+		this.value = value;
+	}
+
+	public Message (byte type, byte[] key, byte[] value) {
+		this(type, 0, null);
+		this.key = key;
+		this.value = value;
+	}
+
+	public Message (byte type, byte[] key, byte[] value, NodeRef[] list) {
+		this(type, key, value);
+		this.list = list;
+	}
+
+	private Message (byte type, long id, NodeRef address) {
+		this.type = type;
+		this.id = id;
+		this.address = address;
+	}
+
+	/**
+	 * Getters
+	 * @return the variable caller wants
+	 */
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getReqId() {
+		return reqId;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public NodeRef getAddress() {
+		return address;
+	}
+
+	public NodeRef[] getList() {
+		return list;
+	}
+
+	public long[] getIds() {
+		return ids;
+	}
+
+	public byte[] getKey() {
+		return key;
+	}
+
+	public byte[] getValue() {
+		return value;
+	}
+
+	/**
+	 * Write message in text form
+	 * @return text line, without line break
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder(NAMES[type]);
+		if (HAS_ID[type])
+			sb.append('_').append(id);
+		if (HAS_ADDRESS[type] && address != null)
+			sb.append('_').append(address.toText());
+		if (HAS_KEY[type])
+			sb.append('_').append(key == null ? "" : Base64.getEncoder().encodeToString(key));
+		if (HAS_VALUE[type])
+			sb.append('_').append(value == null ? "" : Base64.getEncoder().encodeToString(value));
+		if (HAS_LIST[type]) {
+			sb.append('_');
+			for (int i = 0; i < list.length; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(list[i].toText());
+			}
+		}
+		if (HAS_IDS[type]) {
+			sb.append('_');
+			for (int i = 0; i < ids.length; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(ids[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse a message from its text form
+	 * @param line
+	 * @return parsed message, null if line is not a valid message
+	 */
+	public static Message parseText (String line) {
+		if (line == null)
+			return null;
+		String[] parts = line.split("_", -1);
+		byte type = 0;
+		for (byte i = 1; i < NAMES.length; i++) {
+			if (NAMES[i].equals(parts[0])) {
+				type = i;
+				break;
+			}
+		}
+		if (type == 0)
+			return null;
+		Message ret = new Message(type);
+		int k = 1;
+		try {
+			if (HAS_ID[type])
+				ret.id = Long.parseLong(parts[k++]);
+			if (HAS_ADDRESS[type]) {
+				ret.address = NodeRef.of(Helper.createSocketAddress(parts[k++]));
+				if (ret.address == null)
+					return null;
+			}
+			if (HAS_KEY[type])
+				ret.key = Base64.getDecoder().decode(parts[k++]);
+			if (HAS_VALUE[type])
+				ret.value = Base64.getDecoder().decode(parts[k++]);
+			if (HAS_LIST[type] && k < parts.length) {
+				String part = parts[k++];
+				if (part.length() > 0) {
+					String[] items = part.split(",");
+					ret.list = new NodeRef[items.length];
+					for (int i = 0; i < items.length; i++) {
+						ret.list[i] = NodeRef.of(Helper.createSocketAddress(items[i]));
+						if (ret.list[i] == null)
+							return null;
+					}
+				}
+			}
+			if (HAS_IDS[type] && k < parts.length) {
+				String part = parts[k++];
+				if (part.length() > 0) {
+					String[] items = part.split(",");
+					ret.ids = new long[items.length];
+					for (int i = 0; i < items.length; i++) {
+						ret.ids[i] = Long.parseLong(items[i]);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return ret;
+	}
+
+	/**
+	 * Encode message into a binary frame
+	 * @param reqId: request id of the frame, a reply uses its request's id
+	 * @return buffer holding the whole frame, ready to be written
+	 */
+	public ByteBuffer toFrame(int reqId) {
+		int bodyLength = 1 + 4 + 8 + wireLength(address) + 2 + 4 + 8 * ids.length
+				+ wireLength(key) + wireLength(value);
+		for (NodeRef n : list)
+			bodyLength += wireLength(n);
+		ByteBuffer buf = ByteBuffer.allocate(4 + bodyLength);
+		buf.putInt(bodyLength);
+		buf.put(type);
+		buf.putInt(reqId);
+		buf.putLong(id);
+		putAddress(buf, address);
+		buf.putShort((short) list.length);
+		for (NodeRef n : list)
+			putAddress(buf, n);
+		buf.putInt(ids.length);
+		for (long i : ids)
+			buf.putLong(i);
+		putBytes(buf, key);
+		putBytes(buf, value);
+		buf.flip();
+		return buf;
+	}
+
+	private static int wireLength (NodeRef n) {
+		return n == null ? 1 : n.getWireForm().length;
+	}
+
+	private static void putAddress (ByteBuffer buf, NodeRef n) {
+		if (n == null)
+			buf.put((byte) 0);
+		else
+			buf.put(n.getWireForm());
+	}
+
+	private static int wireLength (byte[] b) {
+		return b == null ? 4 : 4 + b.length;
+	}
+
+	private static void putBytes (ByteBuffer buf, byte[] b) {
+		if (b == null) {
+			buf.putInt(-1);
+		}
+		else {
+			buf.putInt(b.length);
+			buf.put(b);
+		}
+	}
+
+	/**
+	 * Read bytes written by putBytes
+	 * @param body
+	 * @return bytes, null if they were absent or body is malformed
+	 */
+	private static byte[] getBytes (ByteBuffer body) {
+		int length = body.getInt();
+		if (length < 0 || length > body.remaining())
+			return null;
+		byte[] b = new byte[length];
+		body.get(b);
+		return b;
+	}
+
+	/**
+	 * Read an address written by putAddress
+	 * @param body
+	 * @return address, null if its length is 0
+	 * @throws UnknownHostException if address length is invalid
+	 */
+	private static NodeRef getAddress (ByteBuffer body) throws UnknownHostException {
+		int addrLength = body.get();
+		if (addrLength == 0)
+			return null;
+		byte[] addr = new byte[addrLength];
+		body.get(addr);
+		int port = body.getShort() & 0xFFFF;
+		return NodeRef.of(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+	}
+
+	/**
+	 * Decode message from the body of a binary frame (the part after the
+	 * length prefix)
+	 * @param body: buffer positioned at the opcode
+	 * @return decoded message, null if body is malformed
+	 */
+	public static Message fromFrame (ByteBuffer body) {
+		try {
+			byte type = body.get();
+			if (type <= 0 || type >= NAMES.length)
+				return null;
+			int reqId = body.getInt();
+			long id = body.getLong();
+			Message ret = new Message(type, id, getAddress(body));
+			ret.reqId = reqId;
+			int count = body.getShort() & 0xFFFF;
+			if (count > 0) {
+				ret.list = new NodeRef[count];
+				for (int i = 0; i < count; i++) {
+					ret.list[i] = getAddress(body);
+					if (ret.list[i] == null)
+						return null;
+				}
+			}
+			int idCount = body.getInt();
+			if (idCount < 0 || idCount > body.remaining() / 8)
+				return null;
+			if (idCount > 0) {
+				ret.ids = new long[idCount];
+				for (int i = 0; i < idCount; i++) {
+					ret.ids[i] = body.getLong();
+				}
+			}
+			ret.key = getBytes(body);
+			ret.value = getBytes(body);
+			return ret;
+		} catch (RuntimeException e) {
+			return null;
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,380 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking listener thread. One selector thread accepts connections and
+ * does all socket reads and writes, while a small fixed pool of workers
+ * processes the requests with the same logic as talker. Like talker, it
+ * serves both text lines and negotiated binary frames. Text requests on one
+ * connection are processed one after another, so replies keep their order;
+ * binary requests are processed concurrently and replied in any order.
+ * Requests that wait on other nodes, lookups, key requests and the
+ * closest finger and recursive hop requests that ping suspected fingers,
+ * run on the shared scheduler workers like talker's do: workers stuck
+ * waiting would leave none for the requests those nodes send back, and a
+ * ring of nio nodes would end up waiting on itself.
+ * @author Chuan Xia
+ *
+ */
+
+public class NioListener extends Thread {
+
+	private Node local;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private ExecutorService workers;
+	private ConcurrentLinkedQueue<Connection> changed;
+	private volatile boolean alive;
+
+	public NioListener (Node n) {
+		local = n;
+		alive = true;
+		changed = new ConcurrentLinkedQueue<Connection>();
+		NodeRef localAddress = local.getAddress();
+		int port = localAddress.getPort();
+
+		//open server/listener channel
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			throw new RuntimeException("\nCannot open listener port "+port+". Now exit.\n", e);
+		}
+		workers = Executors.newFixedThreadPool(Config.WORKERS);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (alive) {
+				selector.select();
+
+				// apply interest changes requested by workers
+				Connection c = null;
+				while ((c = changed.poll()) != null) {
+					c.updateInterest();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else {
+						Connection conn = (Connection) key.attachment();
+						if (key.isReadable())
+							conn.read();
+						if (key.isValid() && key.isWritable())
+							conn.write();
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (alive)
+				throw new RuntimeException("Cannot accepting connection", e);
+		} catch (ClosedSelectorException e) {
+			// listener has been stopped
+		}
+	}
+
+	/**
+	 * Accept a new connection and register it for reading
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection conn = new Connection(channel);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	public void toDie() {
+		alive = false;
+		workers.shutdownNow();
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			// nothing to do, listener is gone anyway
+		}
+	}
+
+	/**
+	 * State of one accepted connection: bytes read but not yet parsed,
+	 * requests waiting for a worker and replies waiting to be written.
+	 * A connection starts with text lines and switches to binary frames
+	 * when the peer sends the negotiation line.
+	 */
+	private class Connection {
+
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+		private ArrayDeque<Message> requests = new ArrayDeque<Message>();
+		private ArrayDeque<ByteBuffer> replies = new ArrayDeque<ByteBuffer>();
+		private boolean binary = false;
+		private int inFlight = 0;
+		private boolean closing = false;
+
+		Connection (SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Read available bytes, split them into requests
+		 */
+		void read() {
+			int n = 0;
+			try {
+				if (!readBuffer.hasRemaining()) {
+					ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+					readBuffer.flip();
+					larger.put(readBuffer);
+					readBuffer = larger;
+				}
+				n = channel.read(readBuffer);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			synchronized (this) {
+				while (!closing && (binary ? parseFrame() : parseLine()));
+				if (closing)
+					readBuffer.clear();
+				else
+					readBuffer.compact();
+			}
+			dispatch();
+			updateInterest();
+		}
+
+		/**
+		 * Parse one text line from read buffer
+		 * @return true if a line was consumed
+		 */
+		private boolean parseLine() {
+			int start = readBuffer.position();
+			int end = start;
+			while (end < readBuffer.limit() && readBuffer.get(end) != '\n')
+				end++;
+			if (end == readBuffer.limit())
+				return false;
+			byte[] bytes = new byte[end - start];
+			readBuffer.get(bytes);
+			readBuffer.get();
+			String line = new String(bytes).trim();
+
+			// switch to binary frames, only at a point where no
+			// text reply is still owed
+			if (Message.HELLO.equals(line) && requests.isEmpty() && inFlight == 0) {
+				replies.add(ByteBuffer.wrap((Message.HELLO_OK+"\n").getBytes()));
+				binary = true;
+				return true;
+			}
+			enqueue(Message.parseText(line));
+			return true;
+		}
+
+		/**
+		 * Parse one binary frame from read buffer
+		 * @return true if a frame was consumed
+		 */
+		private boolean parseFrame() {
+			if (readBuffer.remaining() < 4)
+				return false;
+			int length = readBuffer.getInt(readBuffer.position());
+			if (length <= 0 || length > Message.MAX_FRAME) {
+				closing = true;
+				return false;
+			}
+			if (readBuffer.remaining() < 4 + length) {
+				if (readBuffer.capacity() < 4 + length) {
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(readBuffer);
+					larger.flip();
+					readBuffer = larger;
+				}
+				return false;
+			}
+			readBuffer.position(readBuffer.position() + 4);
+			ByteBuffer body = readBuffer.slice();
+			body.limit(length);
+			readBuffer.position(readBuffer.position() + length);
+			enqueue(Message.fromFrame(body));
+			return true;
+		}
+
+		/**
+		 * Queue a parsed request, a request that cannot be parsed
+		 * closes the connection once earlier replies are written
+		 * @param request
+		 */
+		private void enqueue (Message request) {
+			if (request == null)
+				closing = true;
+			else
+				requests.add(request);
+		}
+
+		/**
+		 * Hand waiting requests to workers. Text requests go one at a time,
+		 * binary requests carry their own id and all go at once
+		 */
+		void dispatch() {
+			while (true) {
+				final Message request;
+				synchronized (this) {
+					if (requests.isEmpty() || (!binary && inFlight > 0))
+						return;
+					inFlight++;
+					request = requests.poll();
+				}
+				try {
+					Runnable task = new Runnable() {
+						@Override
+						public void run() {
+							process(request);
+						}
+					};
+					if (mayBlock(request))
+						Scheduler.execute(task);
+					else
+						workers.execute(task);
+				} catch (RuntimeException e) {
+					// workers are shut down, listener is dying
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Check if a request makes requests to other nodes while processed
+		 * @param request
+		 * @return true for lookups, which take hops, closest finger and 
+		 * recursive hop requests, which ping suspected fingers, key 
+		 * requests, which are passed to their owner, and leaves, which 
+		 * notify the new successor
+		 */
+		private boolean mayBlock (Message request) {
+			switch (request.getType()) {
+			case Message.FINDSUCC:
+			case Message.FINDSUCCS:
+			case Message.CLOSEST:
+			case Message.RFINDSUCC:
+			case Message.RLOOKUP:
+			case Message.PUT:
+			case Message.GET:
+			case Message.DEL:
+			case Message.LEAVING:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Run in worker: process request, its reply is queued when ready;
+		 * a recursive lookup does not hold the worker until then
+		 * @param request
+		 */
+		private void process (final Message request) {
+			Talker.processAsync(local, request).whenComplete((response, e) -> reply(request, response));
+		}
+
+		/**
+		 * Queue the reply of a request
+		 * @param request
+		 * @param response: null if request cannot be answered
+		 */
+		private void reply (Message request, Message response) {
+			synchronized (this) {
+				if (binary)
+					replies.add((response == null ? new Message(Message.NOTHING) : response).toFrame(request.getReqId()));
+				else if (response == null) {
+					closing = true;
+					requests.clear();
+				}
+				else
+					replies.add(ByteBuffer.wrap((response.toText()+"\n").getBytes()));
+				inFlight--;
+			}
+			changed.add(this);
+			selector.wakeup();
+			dispatch();
+		}
+
+		/**
+		 * Write queued replies until socket buffer is full
+		 */
+		void write() {
+			synchronized (this) {
+				try {
+					while (!replies.isEmpty()) {
+						ByteBuffer reply = replies.peek();
+						channel.write(reply);
+						if (reply.hasRemaining())
+							break;
+						replies.poll();
+					}
+				} catch (IOException e) {
+					close();
+					return;
+				}
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Run in selector thread: watch for writability only while there
+		 * are replies to write, stop reading once closing, and close
+		 * connection once it is drained
+		 */
+		synchronized void updateInterest() {
+			if (!key.isValid())
+				return;
+			if (closing && replies.isEmpty() && requests.isEmpty() && inFlight == 0) {
+				close();
+				return;
+			}
+			int ops = closing ? 0 : SelectionKey.OP_READ;
+			if (!replies.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do, socket is gone anyway
+			}
+		}
+	}
+}
@@ -1,5 +1,14 @@
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Node class that implements the core data structure 
@@ -11,119 +20,1623 @@ import java.util.HashMap;
 public class Node {
 
 	private long localId;
-	private InetSocketAddress localAddress;
-	private InetSocketAddress predecessor;
-	private HashMap<Integer, InetSocketAddress> finger;
+	private NodeRef localAddress;
+	private volatile NodeRef predecessor;
+	private volatile FingerTable finger;
+	private volatile NodeRef[] successors;
+
+	// recent lookup results
+	private LookupCache lookup_cache;
+
+	// key-value pairs this node owns, copies of its predecessors' pairs,
+	// and what sends its own pairs to its successors
+	private KeyStore store;
+	private KeyStore replicas;
+	private Replicator replicator;
+
+	// milliseconds a joining node waits for its keys to be handed over,
+	// and a node passes on requests for a range it handed over
+	private static final long HANDOFF_WAIT = 10000;
+
+	// most times a key request is passed on between nodes
+	private static final int MAX_FORWARDS = 4;
+
+	// version bit marking a tombstone, see tombstone
+	private static final long DELETED = Long.MIN_VALUE;
+
+	// node this one takes keys from while joining, range it gives to a new
+	// predecessor, range it gave last, and node it gives all its keys to
+	// while leaving
+	private volatile NodeRef handoff_from;
+	private volatile Handoff handoff;
+	private volatile Handoff handed;
+	private final Object handoff_lock = new Object();
+	private volatile NodeRef leaving_to;
+
+	// predecessor cleared last, where the range of the next one starts
+	private volatile NodeRef lost_predecessor;
+
+	// last version given to a write here
+	private long clock;
+
+	// lookups in flight, by the key of the ring stretch they share
+	private ConcurrentHashMap<Long, Flight> in_flight;
+
+	// recursive lookups started here and waiting for their owner, by id
+	private ConcurrentHashMap<Long, CompletableFuture<Message>> recursive_lookups;
+
+	// adaptive periods of stabilize, fix fingers and ask predecessor
+	private Pacer stabilize_pacer;
+	private Pacer fix_pacer;
+	private Pacer check_pacer;
 
 	private Listener listener;
+	private NioListener nio_listener;
 	private Stabilize stabilize;
 	private FixFingers fix_fingers;
 	private AskPredecessor ask_predecessor;
+	private PruneKeys prune_keys;
+
+	/**
+	 * Constructor
+	 * @param address: this node's local address
+	 */
+	public Node (InetSocketAddress address) {
+
+		localAddress = NodeRef.of(address);
+		localId = localAddress.getId();
+
+		// initialize an empty finge table
+		finger = new FingerTable(localId);
+		successors = new NodeRef[0];
+		recursive_lookups = new ConcurrentHashMap<Long, CompletableFuture<Message>>();
+		lookup_cache = new LookupCache(Config.CACHE_SIZE, Config.CACHE_TTL);
+		in_flight = new ConcurrentHashMap<Long, Flight>();
+		store = Config.useOffHeapStore() ? new OffHeapStore() : new HeapStore();
+		replicas = Config.useOffHeapStore() ? new OffHeapStore() : new HeapStore();
+		replicator = new Replicator(this);
+
+		// initialize predecessor
+		predecessor = null;
+
+		// initialize threads
+		stabilize_pacer = new Pacer(Config.STABILIZE_MIN, Config.STABILIZE_MAX);
+		fix_pacer = new Pacer(Config.FIX_MIN, Config.FIX_MAX);
+		check_pacer = new Pacer(Config.FIX_MIN, Config.FIX_MAX);
+		if (Config.useNioListener())
+			nio_listener = new NioListener(this);
+		else
+			listener = new Listener(this);
+		stabilize = new Stabilize(this);
+		fix_fingers = new FixFingers(this);
+		ask_predecessor = new AskPredecessor(this);
+		prune_keys = new PruneKeys(this);
+	}
+
+	/**
+	 * Create or join a ring 
+	 * @param contact
+	 * @return true if successfully create a ring
+	 * or join a ring via contact
+	 */
+	public boolean join (InetSocketAddress contact_address) {
+		NodeRef contact = NodeRef.of(contact_address);
+		NodeRef successor = null;
+
+		// if contact is other node (join ring), try to contact that node
+		// (contact will never be null)
+		if (contact != null && !contact.equals(localAddress)) {
+			successor = Helper.requestAddress(contact, new Message(Message.FINDSUCC, localId));
+			if (successor == null)  {
+				System.out.println("\nCannot find node you are trying to contact. Please exit.\n");
+				return false;
+			}
+
+			// successor's predecessor is ours until stabilization says 
+			// otherwise, so our keys are served here from the start instead
+			// of being looked up on successor after it handed them over
+			NodeRef pre = Helper.requestAddress(successor, new Message(Message.YOURPRE));
+			if (pre == null)
+				pre = successor;
+			if (pre.equals(successor) || isBetween(localId, pre, successor))
+				setPredecessor(pre);
+
+			// successor hands our keys over once we are its predecessor,
+			// keys not here yet are asked from it until then
+			handoff_from = successor;
+			Scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					handoff_from = null;
+				}
+			}, HANDOFF_WAIT);
+		}
+
+		// listen before successor is notified, it hands keys over at once
+		if (listener != null)
+			listener.start();
+		if (nio_listener != null)
+			nio_listener.start();
+		if (successor != null) {
+			updateFingers(1, successor);
+			bootstrapFingers(successor);
+		}
+
+		// start all threads	
+		stabilize.start();
+		fix_fingers.start();
+		ask_predecessor.start();
+		prune_keys.start();
+		return true;
+	}
+
+	/**
+	 * Leave the ring: give all keys to successor, a page at a time, then
+	 * tell successor and predecessor who replaces this node next to them,
+	 * so they link to each other at once instead of finding this node 
+	 * dead after some failed requests. Then stop all threads
+	 */
+	public void leave () {
+		NodeRef successor = getSuccessor();
+		NodeRef predecessor = this.predecessor;
+		if (successor != null && !successor.equals(localAddress)) {
+
+			// from now on requests for keys go to successor too
+			leaving_to = successor;
+			stabilize.toDie();
+			fix_fingers.toDie();
+			ask_predecessor.toDie();
+			prune_keys.toDie();
+			pushKeys(successor);
+			if (predecessor != null && !predecessor.equals(localAddress)) {
+				NodeRef[] leaver = new NodeRef[] {localAddress};
+				Helper.request(successor, new Message(Message.LEAVING, 0, predecessor, leaver));
+				Helper.request(predecessor, new Message(Message.LEAVING, 0, successor, leaver));
+			}
+		}
+		stopAllThreads();
+	}
+
+	/**
+	 * A neighbour is leaving the ring, link to the node replacing it
+	 * @param leaver
+	 * @param replacement: leaver's predecessor if leaver is this node's
+	 * predecessor, its successor if leaver is this node's successor
+	 */
+	public void left (NodeRef leaver, NodeRef replacement) {
+		FailureDetector.failed(leaver);
+		boolean alone = replacement.equals(localAddress);
+		if (leaver.equals(predecessor)) {
+			setPredecessor(alone ? null : replacement);
+			promote(replacement.getId());
+		}
+		if (leaver.equals(getSuccessor()) && !alone)
+			updateFingers(1, replacement);
+		updateFingers(-2, leaver);
+	}
+
+	/**
+	 * Give all keys to successor, see giveKeys
+	 * @param successor
+	 */
+	private void pushKeys (NodeRef successor) {
+		if (!giveKeys(successor, -1, 0xFFFFFFFFL))
+			System.out.println("Cannot hand keys over to successor, some are lost.");
+	}
+
+	/**
+	 * Hand the keys in (low, new predecessor] over to a new predecessor,
+	 * which owns them now. Until they all arrived, requests for them 
+	 * reaching this node are passed on (see storeRequest); then they are
+	 * kept here as replicas, this node being the new predecessor's first
+	 * successor. One handoff runs at a time
+	 * @param low: start of the range, the predecessor before
+	 * @param to: new predecessor
+	 */
+	private void handOver (long low, NodeRef to) {
+		synchronized (handoff_lock) {
+			Handoff h = new Handoff(low, to.getId(), to);
+			handoff = h;
+			try {
+				if (!giveKeys(to, low, to.getId()))
+					return;
+
+				// all arrived, keys written meanwhile were passed on too
+				final ArrayList<Long> ids = new ArrayList<Long>();
+				final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+				scanRing(low, to.getId(), low, (id, key, value) -> {
+					ids.add(id);
+					keys.add(key);
+					return true;
+				});
+				for (int i = 0; i < ids.size(); i++) {
+					byte[] value = store.remove(ids.get(i), keys.get(i));
+					if (value != null)
+						replicas.put(ids.get(i), keys.get(i), value);
+				}
+				handed = h;
+				Scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (handed == h)
+							handed = null;
+					}
+				}, HANDOFF_WAIT);
+			} finally {
+				handoff = null;
+			}
+		}
+	}
+
+	/**
+	 * Copy all keys to a new replica, see giveKeys
+	 * @param replica
+	 * @return true if every page was accepted
+	 */
+	public boolean copyKeys (NodeRef replica) {
+		return giveKeys(replica, -1, 0xFFFFFFFFL, Message.REPLICATE);
+	}
+
+	/**
+	 * Send the keys in ring range (low, high] to another node, a page at 
+	 * a time, ending with an empty page. Keys stay here
+	 * @param to
+	 * @param low: -1 with high 0xFFFFFFFF for all keys
+	 * @param high
+	 * @return true if every page was accepted
+	 */
+	private boolean giveKeys (NodeRef to, long low, long high) {
+		return giveKeys(to, low, high, Message.GIVEKEYS);
+	}
+
+	/**
+	 * Send keys to another node in pages
+	 * @param to
+	 * @param low
+	 * @param high
+	 * @param type: GIVEKEYS to hand them over, REPLICATE to copy them
+	 * @return true if every page was accepted
+	 */
+	private boolean giveKeys (NodeRef to, long low, long high, byte type) {
+		long cursor = low;
+		while (true) {
+			Page page = new Page();
+			if (low < 0)
+				store.scan(cursor, high, page);
+			else
+				scanRing(low, high, cursor, page);
+			Message sent = page.toMessage(type);
+			Message response = Helper.request(to, sent);
+			if (response == null || response.getType() != Message.ACCEPTED)
+				return false;
+			long[] ids = sent.getIds();
+			if (ids.length == 0)
+				return true;
+			cursor = ids[ids.length - 1];
+		}
+	}
+
+	/**
+	 * Store a page of keys handed over by another node. Keys already here
+	 * in a newer version are kept, they were written after the page was
+	 * sent. An empty page ends a handoff
+	 * @param page: GIVEKEYS
+	 * @return false if the page is malformed
+	 */
+	public boolean storePage (Message page) {
+		boolean ok = Page.unpack(page, (id, key, value) -> {
+			if (value != null && putNewer(store, id, key, value))
+				replicator.written(id, key, value);
+			return true;
+		});
+		if (ok && page.getIds().length == 0)
+			handoff_from = null;
+		return ok;
+	}
+
+	/**
+	 * Apply a batch of writes of a predecessor to the replicas
+	 * @param batch: REPLICATE
+	 * @return false if the batch is malformed
+	 */
+	public boolean storeReplicas (Message batch) {
+		return Page.unpack(batch, (id, key, value) -> {
+			if (value == null)
+				replicas.remove(id, key);
+
+			// a read found the owner itself behind, see quorumRead
+			else if (owns(id)) {
+				if (putNewer(store, id, key, value))
+					replicator.written(id, key, value);
+			}
+			else
+				putNewer(replicas, id, key, value);
+			return true;
+		});
+	}
+
+	/**
+	 * Store a stamped value unless the store has a newer version of it
+	 * @param to: store or replicas
+	 * @param id
+	 * @param key
+	 * @param stamped: version | value, see stamp
+	 * @return true if stored
+	 */
+	private static boolean putNewer (KeyStore to, long id, byte[] key, byte[] stamped) {
+		synchronized (to) {
+			byte[] old = to.get(id, key);
+			if (old != null && versionOf(old) > versionOf(stamped))
+				return false;
+			to.put(id, key, stamped);
+			return true;
+		}
+	}
+
+	/**
+	 * Get a new version for a write of key: later than any version this
+	 * node gave before and than the key's current one. Versions are
+	 * milliseconds shifted left by 20 bits, so a new owner taking over a
+	 * key goes on after the old owner's versions as long as their clocks
+	 * roughly agree
+	 * @param old: stamped value being replaced, null if none
+	 * @return version
+	 */
+	private synchronized long nextVersion (byte[] old) {
+		clock = Math.max(clock + 1, System.currentTimeMillis() << 20);
+		if (old != null)
+			clock = Math.max(clock, versionOf(old) + 1);
+		return clock;
+	}
+
+	/**
+	 * Stamp a value with its version, the way values are kept in the store,
+	 * replicas and pages
+	 * @param version
+	 * @param value
+	 * @return long version | value
+	 */
+	private static byte[] stamp (long version, byte[] value) {
+		return ByteBuffer.allocate(8 + value.length).putLong(version).put(value).array();
+	}
+
+	/**
+	 * Get the record a delete leaves in place of a value, so the delete
+	 * reaches replicas and wins over older values like a write does
+	 * @param version
+	 * @return stamped empty value with the DELETED bit set in its version
+	 */
+	private static byte[] tombstone (long version) {
+		return stamp(version | DELETED, new byte[0]);
+	}
+
+	private static long versionOf (byte[] stamped) {
+		return ByteBuffer.wrap(stamped).getLong() & ~DELETED;
+	}
+
+	private static boolean isDeleted (byte[] stamped) {
+		return (ByteBuffer.wrap(stamped).getLong() & DELETED) != 0;
+	}
+
+	private static byte[] valueOf (byte[] stamped) {
+		return Arrays.copyOfRange(stamped, 8, stamped.length);
+	}
+
+	/**
+	 * Take over the replicas in (low, local], the range of a predecessor
+	 * that is gone: they become keys this node owns, and are copied to
+	 * its own replicas. Keys owned in a newer version are kept
+	 * @param low: new predecessor
+	 */
+	private void promote (long low) {
+		final ArrayList<Long> ids = new ArrayList<Long>();
+		final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		final ArrayList<byte[]> values = new ArrayList<byte[]>();
+		scanRing(replicas, low, localId, low, (id, key, value) -> {
+			ids.add(id);
+			keys.add(key);
+			values.add(value);
+			return true;
+		});
+		for (int i = 0; i < ids.size(); i++) {
+			replicas.remove(ids.get(i), keys.get(i));
+			if (putNewer(store, ids.get(i), keys.get(i), values.get(i)))
+				replicator.written(ids.get(i), keys.get(i), values.get(i));
+		}
+	}
+
+	/**
+	 * Drop tombstones older than Config.TOMBSTONE_TTL, by then applied by
+	 * all replicas, and replicas of ranges this node is no replica of any
+	 * more: those outside (p, local], p being the Config.REPLICAS + 1th
+	 * predecessor. Predecessors are asked for one by one; if one cannot
+	 * tell, or the ring is too small, all replicas are kept
+	 */
+	public void pruneKeys () {
+		long expired = (System.currentTimeMillis() - Config.TOMBSTONE_TTL) << 20;
+		dropTombstones(store, expired);
+		dropTombstones(replicas, expired);
+
+		NodeRef low = predecessor;
+		for (int i = 0; i < Config.REPLICAS && low != null && !low.equals(localAddress); i++) {
+			Message response = Helper.request(low, new Message(Message.YOURPRE));
+			low = response != null && response.getType() == Message.MYPRE ? response.getAddress() : null;
+		}
+		if (low == null || low.equals(localAddress))
+			return;
+		final ArrayList<Long> ids = new ArrayList<Long>();
+		final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		scanRing(replicas, localId, low.getId(), localId, (id, key, value) -> {
+			ids.add(id);
+			keys.add(key);
+			return true;
+		});
+		for (int i = 0; i < ids.size(); i++)
+			replicas.remove(ids.get(i), keys.get(i));
+	}
+
+	/**
+	 * Drop the tombstones of a store older than a version
+	 * @param from: store or replicas
+	 * @param before: version
+	 */
+	private static void dropTombstones (KeyStore from, final long before) {
+		final ArrayList<Long> ids = new ArrayList<Long>();
+		final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		from.scan(-1, 0xFFFFFFFFL, (id, key, value) -> {
+			if (isDeleted(value) && versionOf(value) < before) {
+				ids.add(id);
+				keys.add(key);
+			}
+			return true;
+		});
+
+		// a key written again since is kept
+		for (int i = 0; i < ids.size(); i++) {
+			synchronized (from) {
+				byte[] value = from.get(ids.get(i), keys.get(i));
+				if (value != null && isDeleted(value) && versionOf(value) < before)
+					from.remove(ids.get(i), keys.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Check if id falls in ring range (low, high]
+	 * @param id
+	 * @param low
+	 * @param high
+	 * @return true if it does
+	 */
+	private static boolean inRange (long id, long low, long high) {
+		long id_relative = Helper.computeRelativeId(id, low);
+		return id_relative > 0 && id_relative <= Helper.computeRelativeId(high, low);
+	}
+
+	/**
+	 * Visit stored keys in ring range (low, high] in ring order
+	 * @param low
+	 * @param high
+	 * @param after: visit keys after this id, low for all
+	 * @param visitor
+	 */
+	private void scanRing (long low, long high, long after, KeyStore.Visitor visitor) {
+		scanRing(store, low, high, after, visitor);
+	}
+
+	/**
+	 * Visit keys of a store in ring range (low, high] in ring order
+	 * @param from: store or replicas
+	 * @param low
+	 * @param high
+	 * @param after: visit keys after this id, low for all
+	 * @param visitor
+	 */
+	private static void scanRing (KeyStore from, long low, long high, long after, final KeyStore.Visitor visitor) {
+		if (low < high) {
+			from.scan(after, high, visitor);
+			return;
+		}
+
+		// range wraps past 0: (low, max], then [0, high]
+		if (after >= low) {
+			final boolean[] stopped = new boolean[1];
+			from.scan(after, 0xFFFFFFFFL, (id, key, value) -> {
+				stopped[0] = !visitor.visit(id, key, value);
+				return !stopped[0];
+			});
+			if (stopped[0])
+				return;
+			after = -1;
+		}
+		from.scan(after, high, visitor);
+	}
+
+	/**
+	 * Fill the finger table from the nodes successor knows, in one round 
+	 * trip: every empty finger gets the first of them at or after its 
+	 * start. These fingers may skip nodes successor does not know of, so 
+	 * all of them are then looked up again in parallel, routed over the 
+	 * seeded table instead of along the ring
+	 * @param successor
+	 */
+	private void bootstrapFingers (NodeRef successor) {
+		Message response = Helper.request(successor, new Message(Message.YOURFINGERS));
+		if (response == null || response.getType() != Message.MYFINGERS)
+			return;
+
+		// local node is a candidate too, starts it owns get no finger
+		ArrayList<NodeRef> known = new ArrayList<NodeRef>(Arrays.asList(response.getList()));
+		known.add(successor);
+		known.add(localAddress);
+		final long[] starts = new long[31];
+		for (int i = 2; i <= 32; i++)
+			starts[i-2] = Helper.ithStart(localId, i);
+		NodeRef[] seeds = Helper.ownersOf(starts, known.toArray(new NodeRef[known.size()]));
+
+		boolean changed = false;
+		synchronized (this) {
+			for (int i = 2; i <= 32; i++) {
+				NodeRef seed = seeds[i-2];
+				if (finger.get(i) == null && !seed.equals(localAddress) && !FailureDetector.isDead(seed)) {
+					updateIthFinger(i, seed);
+					changed = true;
+				}
+			}
+		}
+		if (!changed)
+			return;
+		churn();
+		for (NodeRef seed : seeds)
+			lookup_cache.seen(seed);
+
+		// verify, lookups of the same range share one traversal
+		for (int i = 2; i <= 32; i++) {
+			final int index = i;
+			findSuccessorAsync(starts[i-2])
+				.thenAccept(ithfinger -> updateFingers(index, ithfinger));
+		}
+	}
+
+	/**
+	 * Notify successor that this node should be its predecessor
+	 * @param successor
+	 * @return successor's response
+	 */
+	public Message notify(NodeRef successor) {
+		if (successor!=null && !successor.equals(localAddress))
+			return Helper.request(successor, new Message(Message.IAMPRE, localAddress));
+		else
+			return null;
+	}
+
+	/**
+	 * Notify successor in background, so caller never waits for it
+	 * @param successor
+	 */
+	private void notifyAsync(final NodeRef successor) {
+		Scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				Node.this.notify(successor);
+			}
+		});
+	}
+
+	/**
+	 * Being notified by another node, set it as my predecessor if it is.
+	 * @param newpre
+	 */
+	public void notified (NodeRef newpre) {
+		FailureDetector.heard(newpre);
+		NodeRef predecessor = this.predecessor;
+		if (predecessor == null || predecessor.equals(localAddress)) {
+			NodeRef lost = lost_predecessor;
+			NodeRef successor = getSuccessor();
+			boolean alone = predecessor != null || successor == null || successor.equals(localAddress);
+			this.setPredecessor(newpre);
+
+			// a predecessor found dead left its range to this node
+			if (!newpre.equals(localAddress))
+				promote(newpre.getId());
+
+			// alone, this node owned the whole ring; else its range started
+			// at the predecessor lost last, and if that one is not known
+			// there is no range to hand over that surely was this node's
+			if (alone)
+				handOverAsync(localId, newpre);
+			else if (lost != null && isBetween(newpre.getId(), lost, localAddress))
+				handOverAsync(lost.getId(), newpre);
+		}
+		else {
+			long oldpre_id = predecessor.getId();
+			long local_relative_id = Helper.computeRelativeId(localId, oldpre_id);
+			long newpre_relative_id = Helper.computeRelativeId(newpre.getId(), oldpre_id);
+			if (newpre_relative_id > 0 && newpre_relative_id < local_relative_id) {
+				this.setPredecessor(newpre);
+				handOverAsync(oldpre_id, newpre);
+			}
+		}
+	}
+
+	/**
+	 * Hand keys over to a new predecessor in background
+	 * @param low: start of its range, see handOver
+	 * @param newpre
+	 */
+	private void handOverAsync (final long low, final NodeRef newpre) {
+		if (newpre.equals(localAddress))
+			return;
+		Scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				handOver(low, newpre);
+			}
+		});
+	}
+
+	/**
+	 * Ask current node to find id's successor.
+	 * @param id
+	 * @return id's successor's socket address
+	 */
+	public NodeRef find_successor (long id) {
+
+		// a recent lookup might have found the owner already
+		NodeRef cached = cachedOwner(id);
+		if (cached != null)
+			return cached;
+
+		// share a lookup in flight for the same stretch of ring
+		long key = flightKey(id);
+		Flight flight = new Flight(id);
+		Flight leader = in_flight.putIfAbsent(key, flight);
+		if (leader != null) {
+			NodeRef shared = leader.owner.join();
+			NodeRef found = sharedOwner(leader, shared, id);
+			return found != null ? found : lookup(id);
+		}
+		NodeRef ret = null;
+		try {
+			ret = lookup(id);
+		} finally {
+			in_flight.remove(key, flight);
+			flight.owner.complete(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get id's owner from a lookup in flight that has just finished. 
+	 * The lookup cached the whole range its owner owns, so it answers id
+	 * too if id falls in that range; having just been learned, the range
+	 * needs no confirming
+	 * @param leader: the lookup
+	 * @param owner: its result, might be null if it failed
+	 * @param id
+	 * @return id's owner, null if id needs a lookup of its own
+	 */
+	private NodeRef sharedOwner (Flight leader, NodeRef owner, long id) {
+		if (owner == null || leader.id == id)
+			return owner;
+		return owner.equals(lookup_cache.get(id)) ? owner : null;
+	}
+
+	/**
+	 * Key of the lookups that may share one traversal: the known node 
+	 * (local, predecessor, fingers or successor list) at or closest 
+	 * before id. Ids with the same key have no known node between them,
+	 * so they are likely owned by the same node
+	 * @param id
+	 * @return id of the known node
+	 */
+	private long flightKey (long id) {
+		long key = localId;
+		long distance = Helper.computeRelativeId(id, localId);
+		NodeRef pre = predecessor;
+		if (pre != null && Helper.computeRelativeId(id, pre.getId()) < distance) {
+			key = pre.getId();
+			distance = Helper.computeRelativeId(id, key);
+		}
+		FingerTable table = finger;
+		for (int i = 1; i <= 32; i++) {
+			NodeRef f = table.get(i);
+			if (f != null && Helper.computeRelativeId(id, f.getId()) < distance) {
+				key = f.getId();
+				distance = Helper.computeRelativeId(id, key);
+			}
+		}
+		for (NodeRef s : successors) {
+			if (Helper.computeRelativeId(id, s.getId()) < distance) {
+				key = s.getId();
+				distance = Helper.computeRelativeId(id, key);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Look id's successor up on the network, alone
+	 * @param id
+	 * @return id's successor
+	 */
+	private NodeRef lookup (long id) {
+
+		// ask several fingers at once if configured,
+		// fall back to one at a time if all of them failed
+		if (Config.ALPHA > 1) {
+			NodeRef found = find_successor_parallel(id, Config.ALPHA);
+			if (found != null)
+				return found;
+		}
+
+		// initialize return value as this node's successor (might be null)
+		NodeRef ret = this.getSuccessor();
+
+		// find predecessor
+		NodeRef pre = find_predecessor(id);
+
+		// if other node found, ask it for its successor
+		if (!pre.equals(localAddress))
+			ret = Helper.requestAddress(pre, new Message(Message.YOURSUCC));
+
+		// if that successor is known dead, route around it
+		// with the first live node of pre's successor list
+		if (ret == null || FailureDetector.isDead(ret)) {
+			NodeRef alive = firstAlive(successorListOf(pre));
+			if (alive != null)
+				ret = alive;
+		}
+
+		// if ret is still null, set it as local node, return
+		if (ret == null)
+			ret = localAddress;
+		else if (!pre.equals(localAddress))
+			lookup_cache.put(pre, ret);
+
+		return ret;
+	}
+
+	/**
+	 * Get id's owner from lookup cache, confirmed by the owner itself:
+	 * a node joining inside the cached range is seen by the owner, not 
+	 * by this node, so the owner's predecessor is asked for, one round 
+	 * trip instead of a whole lookup
+	 * @param id
+	 * @return owner, null if not cached, owner is dead or owns id no more
+	 */
+	private NodeRef cachedOwner (long id) {
+		NodeRef cached = cachedCandidate(id);
+		if (cached == null)
+			return null;
+		if (isKnownOwner(id, cached)) {
+			lookup_cache.hit();
+			return cached;
+		}
+		return confirmOwner(id, cached, Helper.request(cached, new Message(Message.YOURPRE)));
+	}
+
+	/**
+	 * Same as cachedOwner, without holding the calling thread while the 
+	 * owner is asked
+	 * @param id
+	 * @return future of owner, completed with null in the same cases
+	 */
+	private CompletableFuture<NodeRef> cachedOwnerAsync (final long id) {
+		final NodeRef cached = cachedCandidate(id);
+		if (cached == null)
+			return CompletableFuture.completedFuture(null);
+		if (isKnownOwner(id, cached)) {
+			lookup_cache.hit();
+			return CompletableFuture.completedFuture(cached);
+		}
+		return Helper.requestAsync(cached, new Message(Message.YOURPRE))
+				.thenApply(response -> confirmOwner(id, cached, response));
+	}
+
+	/**
+	 * Get id's owner from lookup cache, unless it is known dead, or it is
+	 * this node and id is not in its range; those count as misses
+	 * @param id
+	 * @return cached owner, null if there is none usable
+	 */
+	private NodeRef cachedCandidate (long id) {
+		NodeRef cached = lookup_cache.get(id);
+		if (cached != null && FailureDetector.isDead(cached)) {
+			lookup_cache.gone(cached);
+			cached = null;
+		}
+		if (cached != null && cached.equals(localAddress) && !owns(id))
+			cached = null;
+		if (cached == null)
+			lookup_cache.miss();
+		return cached;
+	}
+
+	/**
+	 * Check if a cached owner needs no confirming: it is this node, or 
+	 * its successor, whose ranges are known here
+	 * @param id
+	 * @param cached: from cachedCandidate
+	 * @return true if cached owns id
+	 */
+	private boolean isKnownOwner (long id, NodeRef cached) {
+		if (cached.equals(localAddress))
+			return true;
+		NodeRef successor = getSuccessor();
+		return cached.equals(successor) && isBetween(id, localAddress, successor);
+	}
+
+	/**
+	 * Check a cached owner's reply to YOURPRE: it still owns id if id
+	 * falls between its predecessor and itself. Either way the range
+	 * it now owns is cached in place of the old one. Only a confirmed
+	 * owner counts as a cache hit
+	 * @param id
+	 * @param cached
+	 * @param response
+	 * @return cached, null if it does not own id or cannot tell
+	 */
+	private NodeRef confirmOwner (long id, NodeRef cached, Message response) {
+		NodeRef pre = response != null && response.getType() == Message.MYPRE ? response.getAddress() : null;
+		if (response == null)
+			lookup_cache.gone(cached);
+		else if (pre != null && !pre.equals(cached)) {
+			lookup_cache.seen(pre);
+			lookup_cache.put(pre, cached);
+		}
+		if (pre == null || pre.equals(cached) || !isBetween(id, pre, cached)) {
+			lookup_cache.refuted();
+			return null;
+		}
+		lookup_cache.hit();
+		return cached;
+	}
+
+	/**
+	 * Find id's successor without holding a thread while waiting for
+	 * remote nodes: each hop is sent asynchronously with its own timeout
+	 * and the next step runs when its response arrives. If a hop fails,
+	 * the lookup finishes with find_successor, which routes around
+	 * dead nodes.
+	 * @param id
+	 * @return future of id's successor, never completed with null
+	 */
+	public CompletableFuture<NodeRef> findSuccessorAsync (final long id) {
+		return cachedOwnerAsync(id).thenComposeAsync(cached -> cached != null 
+				? CompletableFuture.completedFuture(cached) 
+				: lookupShared(id), Scheduler.executor());
+	}
+
+	/**
+	 * Asynchronous lookup of id's successor on the network, sharing a
+	 * lookup in flight for the same stretch of ring
+	 * @param id
+	 * @return future of id's successor, never completed with null
+	 */
+	private CompletableFuture<NodeRef> lookupShared (final long id) {
+
+		// share a lookup in flight for the same stretch of ring
+		final long key = flightKey(id);
+		final Flight flight = new Flight(id);
+		final Flight leader = in_flight.putIfAbsent(key, flight);
+		if (leader != null) {
+			return leader.owner.thenComposeAsync(shared -> {
+				NodeRef found = sharedOwner(leader, shared, id);
+				return found != null ? CompletableFuture.completedFuture(found) : lookupAsync(id);
+			}, Scheduler.executor());
+		}
+		return lookupAsync(id).whenComplete((ret, error) -> {
+			in_flight.remove(key, flight);
+			flight.owner.complete(ret);
+		});
+	}
+
+	/**
+	 * Asynchronous lookup of id's successor on the network, alone
+	 * @param id
+	 * @return future of id's successor, never completed with null
+	 */
+	private CompletableFuture<NodeRef> lookupAsync (final long id) {
+		NodeRef successor = getSuccessor();
+
+		// id falls between local node and its successor
+		if (successor != null && isBetween(id, localAddress, successor))
+			return CompletableFuture.completedFuture(successor);
+
+		// local closest finger might be probed, do not block caller
+		return CompletableFuture.supplyAsync(() -> closest_preceding_finger(id), Scheduler.executor())
+				.thenCompose(n -> n.equals(localAddress) 
+						? CompletableFuture.completedFuture(n) 
+						: findPredecessorAsync(n, id, 0))
+				.thenComposeAsync(pre -> {
+					if (pre == null)
+						return CompletableFuture.completedFuture(null);
+					if (pre.equals(localAddress))
+						return CompletableFuture.completedFuture(getSuccessor());
+					return Helper.requestAsync(pre, new Message(Message.YOURSUCC))
+							.thenApply(response -> {
+								NodeRef ret = Helper.addressOf(pre, response);
+								if (ret != null && !FailureDetector.isDead(ret))
+									lookup_cache.put(pre, ret);
+								return ret;
+							});
+				}, Scheduler.executor())
+				.thenComposeAsync(ret -> {
+
+					// hop failed or successor is dead, finish the slow way
+					if (ret == null || FailureDetector.isDead(ret))
+						return CompletableFuture.supplyAsync(() -> lookup(id), Scheduler.executor());
+					return CompletableFuture.completedFuture(ret);
+				}, Scheduler.executor());
+	}
+
+	/**
+	 * Asynchronous step of findSuccessorAsync: ask n for its closest finger
+	 * preceding id, then that finger for its successor, until id falls 
+	 * between a node and its successor
+	 * @param n: remote node preceding id
+	 * @param id
+	 * @param hops: hops taken so far
+	 * @return future of id's predecessor, completed with null if a hop failed
+	 */
+	private CompletableFuture<NodeRef> findPredecessorAsync (final NodeRef n, final long id, final int hops) {
+		if (hops > 32)
+			return CompletableFuture.completedFuture(null);
+		return Helper.requestAsync(n, new Message(Message.CLOSEST, id))
+				.thenComposeAsync(response -> {
+					final NodeRef closest = Helper.addressOf(n, response);
+					if (closest == null || closest.equals(n))
+						return CompletableFuture.completedFuture(closest);
+					return Helper.requestAsync(closest, new Message(Message.YOURSUCC))
+							.thenComposeAsync(reply -> {
+								NodeRef closest_successor = Helper.addressOf(closest, reply);
+								if (closest_successor == null)
+									return CompletableFuture.completedFuture(null);
+								if (isBetween(id, closest, closest_successor))
+									return CompletableFuture.completedFuture(closest);
+								return findPredecessorAsync(closest, id, hops + 1);
+							}, Scheduler.executor());
+				}, Scheduler.executor());
+	}
+
+	/**
+	 * Find id's successor recursively: the lookup is forwarded from node 
+	 * to node toward id, and its owner replies directly to this node, so
+	 * every hop costs one message instead of two round trips. Lookups of
+	 * the same id in flight at the same time share one answer. If no
+	 * answer comes within Config.LOOKUP_TIMEOUT, e.g. a node on the way
+	 * died, the lookup finishes iteratively with find_successor.
+	 * @param id
+	 * @return future of an RFOUND message with the owner as address and
+	 * the nodes visited, from this node to the owner, as list; 
+	 * or of a FOUNDSUCC message if it fell back to an iterative lookup
+	 */
+	public CompletableFuture<Message> findSuccessorRecursive (final long id) {
+		CompletableFuture<Message> found = new CompletableFuture<Message>();
+		CompletableFuture<Message> existing = recursive_lookups.putIfAbsent(id, found);
+		if (existing != null)
+			found = existing;
+		else {
+			final CompletableFuture<Message> started = found;
+			started.whenComplete((response, error) -> recursive_lookups.remove(id, started));
+			Scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					routeRecursive(new Message(Message.RFINDSUCC, id, localAddress, new NodeRef[0]));
+				}
+			});
+		}
+		return found.completeOnTimeout(null, Config.LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS)
+				.thenComposeAsync(response -> response != null
+						? CompletableFuture.completedFuture(response)
+						: CompletableFuture.supplyAsync(() -> new Message(Message.FOUNDSUCC, find_successor(id)), Scheduler.executor()), 
+						Scheduler.executor());
+	}
+
+	/**
+	 * Handle a recursive lookup that reached this node: if id falls 
+	 * between the node it came from and this node, this node owns id and 
+	 * replies to the origin, else forward it one hop closer to id
+	 * @param req: RFINDSUCC with the id, the origin and the path so far
+	 */
+	public void routeRecursive (Message req) {
+		long id = req.getId();
+		NodeRef[] path = req.getList();
+
+		// the path gets this node
+		NodeRef[] new_path = Arrays.copyOf(path, path.length + 1);
+		new_path[path.length] = localAddress;
+
+		// id falls between the previous hop and this node
+		NodeRef successor = getSuccessor();
+		boolean owner = path.length > 0 && isBetween(id, path[path.length - 1], localAddress);
+
+		// or this node is alone in the ring
+		owner = owner || successor == null || successor.equals(localAddress);
+		if (owner) {
+			replyRecursive(req.getAddress(), new Message(Message.RFOUND, id, localAddress, new_path));
+			return;
+		}
+
+		// lookup is going around in circles, origin will fall back
+		if (new_path.length > 64)
+			return;
+		forwardRecursive(new Message(Message.RFINDSUCC, id, req.getAddress(), new_path), 0);
+	}
+
+	/**
+	 * Forward a recursive lookup to the next hop: successor if id falls 
+	 * between this node and successor, else the closest finger preceding
+	 * id. If the next hop does not accept it, try another one
+	 * @param req: RFINDSUCC with this node at the end of the path
+	 * @param attempt: hops already tried
+	 */
+	private void forwardRecursive (final Message req, final int attempt) {
+		long id = req.getId();
+		NodeRef successor = getSuccessor();
+		if (successor == null)
+			return;
+		if (FailureDetector.isDead(successor)) {
+			successor = firstAlive(successors);
+			if (successor == null)
+				return;
+		}
+		NodeRef next = successor;
+		if (!isBetween(id, localAddress, successor)) {
+			next = closest_preceding_finger(id);
+			if (next.equals(localAddress))
+				next = successor;
+		}
+		final NodeRef hop = next;
+		Helper.requestAsync(hop, req).thenAccept(response -> {
+			if (response == null && attempt < 3) {
+				updateFingers(-2, hop);
+				Scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						forwardRecursive(req, attempt + 1);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Send the owner of a recursive lookup to its origin
+	 * @param origin
+	 * @param response: RFOUND
+	 */
+	private void replyRecursive (NodeRef origin, Message response) {
+		if (origin.equals(localAddress))
+			recursiveFound(response);
+		else
+			Helper.requestAsync(origin, response);
+	}
+
+	/**
+	 * Complete the recursive lookup waiting for this owner, if any
+	 * @param response: RFOUND
+	 */
+	public void recursiveFound (Message response) {
+		NodeRef[] path = response.getList();
+		if (path.length >= 2)
+			lookup_cache.put(path[path.length - 2], response.getAddress());
+		CompletableFuture<Message> found = recursive_lookups.get(response.getId());
+		if (found != null)
+			found.complete(response);
+	}
 
 	/**
-	 * Constructor
-	 * @param address: this node's local address
+	 * Check if id falls in (n, n_successor]
+	 * @param id
+	 * @param n
+	 * @param n_successor
+	 * @return true if n_successor is id's successor
 	 */
-	public Node (InetSocketAddress address) {
-
-		localAddress = address;
-		localId = Helper.hashSocketAddress(localAddress);
+	private static boolean isBetween (long id, NodeRef n, NodeRef n_successor) {
+		long id_relative = Helper.computeRelativeId(id, n.getId());
+		long successor_relative = Helper.computeRelativeId(n_successor.getId(), n.getId());
+		return id_relative > 0 && id_relative <= successor_relative;
+	}
 
-		// initialize an empty finge table
-		finger = new HashMap<Integer, InetSocketAddress>();
-		for (int i = 1; i <= 32; i++) {
-			updateIthFinger (i, null);
+	/**
+	 * Check if this node owns id: id falls in (predecessor, local], or 
+	 * this node is alone in the ring
+	 * @param id
+	 * @return true if id belongs here
+	 */
+	public boolean owns (long id) {
+		NodeRef predecessor = this.predecessor;
+		if (predecessor == null || predecessor.equals(localAddress)) {
+			NodeRef successor = getSuccessor();
+			return successor == null || successor.equals(localAddress);
 		}
+		return isBetween(id, predecessor, localAddress);
+	}
 
-		// initialize predecessor
-		predecessor = null;
+	/**
+	 * Serve a PUT, GET or DEL. A request from a client is forwarded to the
+	 * key's owner unless this node owns the key. One forwarded by another
+	 * node is applied here only if this node owns the key, or shares it 
+	 * with that node in a handoff or leave; a node that looked a stale
+	 * owner up would otherwise store keys where lookups never find them.
+	 * Else it is passed on to the owner this node finds, at most 
+	 * MAX_FORWARDS times, so it cannot bounce forever between nodes 
+	 * that disagree while the ring changes
+	 * @param request: list holds the nodes that passed it on, in order
+	 * @return reply: STORED, VALUE, DELETED or NOTHING if the key is not 
+	 * stored; null if the owner cannot be reached
+	 */
+	public Message storeRequest (Message request) {
+		long id = Helper.hashKey(request.getKey());
+		NodeRef[] path = request.getList();
+		NodeRef[] new_path = Arrays.copyOf(path, path.length + 1);
+		new_path[path.length] = localAddress;
+		Message forwarded = new Message(request.getType(), request.getKey(), request.getValue(), new_path);
+
+		// leaving, successor owns all keys of this node now
+		NodeRef leaving = leaving_to;
+		if (leaving != null)
+			return Helper.request(leaving, forwarded);
+
+		// lookups not caught up with a range handed over lately still
+		// end here, pass them on to its new owner
+		NodeRef from = path.length > 0 ? path[path.length - 1] : null;
+		Handoff moved = handed;
+		if (moved != null && inRange(id, moved.low, moved.high) && !owns(id) && !moved.to.equals(from))
+			return Helper.request(moved.to, forwarded);
+
+		if (from == null && request.getType() == Message.GET && Config.READ_REPLICAS > 1)
+			return quorumRead(id, request.getKey());
+		if (!owns(id) && (from == null || !sharesKeys(from, id))) {
+			if (path.length >= MAX_FORWARDS)
+				return new Message(Message.NOTHING);
+			NodeRef owner = find_successor(id);
+			if (owner != null && !owner.equals(localAddress))
+				return Helper.request(owner, forwarded);
+		}
 
-		// initialize threads
-		listener = new Listener(this);
-		stabilize = new Stabilize(this);
-		fix_fingers = new FixFingers(this);
-		ask_predecessor = new AskPredecessor(this);
+		// a key being handed over lives on both sides for a while: the 
+		// joining node asks the old owner for keys it does not have yet,
+		// the old owner passes writes on to it; neither passes a request
+		// back to the node it came from
+		NodeRef old_owner = handoff_from;
+		Handoff h = this.handoff;
+		NodeRef new_owner = h != null && inRange(id, h.low, h.high) && !owns(id) ? h.to : null;
+		if (old_owner != null && old_owner.equals(from))
+			old_owner = null;
+		if (new_owner != null && new_owner.equals(from))
+			new_owner = null;
+		NodeRef other = new_owner != null ? new_owner : old_owner;
+		byte[] value = null;
+
+		// with predecessor found dead and its replicas not taken over yet,
+		// its keys might be replicas here still
+		boolean orphan = predecessor == null;
+		switch (request.getType()) {
+		case Message.PUT:
+			synchronized (store) {
+				byte[] old = store.get(id, request.getKey());
+				value = stamp(nextVersion(old), request.getValue());
+				store.put(id, request.getKey(), value);
+			}
+			replicator.written(id, request.getKey(), value);
+			if (new_owner != null)
+				Helper.request(new_owner, forwarded);
+			return new Message(Message.STORED);
+		case Message.GET:
+			value = store.get(id, request.getKey());
+			if (value == null && orphan)
+				value = replicas.get(id, request.getKey());
+			if (value == null && other != null)
+				return Helper.request(other, forwarded);
+			if (value == null || isDeleted(value))
+				return new Message(Message.NOTHING);
+			return new Message(Message.VALUE, (byte[]) null, valueOf(value));
+		case Message.DEL:
+			synchronized (store) {
+				byte[] old = store.get(id, request.getKey());
+				byte[] live = old == null && orphan ? replicas.get(id, request.getKey()) : old;
+				if (live != null && !isDeleted(live)) {
+					value = tombstone(nextVersion(live));
+					store.put(id, request.getKey(), value);
+				}
+			}
+			if (value != null) {
+				if (orphan)
+					replicas.remove(id, request.getKey());
+				replicator.written(id, request.getKey(), value);
+			}
+			if (other != null) {
+				Message response = Helper.request(other, forwarded);
+				if (value == null && response != null)
+					return response;
+			}
+			return new Message(value == null ? Message.NOTHING : Message.DELETED);
+		}
+		return null;
 	}
 
 	/**
-	 * Create or join a ring 
-	 * @param contact
-	 * @return true if successfully create a ring
-	 * or join a ring via contact
+	 * Check if a node passing a key request on may leave the key here
+	 * though this node does not own it: a leaving predecessor, the node 
+	 * handing its keys over to this one, or the one this node hands keys
+	 * over to, asking for keys it has not received yet
+	 * @param from
+	 * @param id: key's ring id
+	 * @return true if the request is served here
 	 */
-	public boolean join (InetSocketAddress contact) {
+	private boolean sharesKeys (NodeRef from, long id) {
+		if (from.equals(predecessor) || from.equals(handoff_from))
+			return true;
+		Handoff h = this.handoff;
+		if (h != null && inRange(id, h.low, h.high) && from.equals(h.to))
+			return true;
+		Handoff moved = handed;
+		return moved != null && inRange(id, moved.low, moved.high) && from.equals(moved.to);
+	}
 
-		// if contact is other node (join ring), try to contact that node
-		// (contact will never be null)
-		if (contact != null && !contact.equals(localAddress)) {
-			InetSocketAddress successor = Helper.requestAddress(contact, "FINDSUCC_" + localId);
-			if (successor == null)  {
-				System.out.println("\nCannot find node you are trying to contact. Please exit.\n");
-				return false;
+	/**
+	 * Read a key for a client from its owner and the owner's first 
+	 * successors, Config.READ_REPLICAS nodes in all, at once. The answer
+	 * is the version the first Config.READ_QUORUM of them (a majority by
+	 * default) agree on, as soon as they do, so slow nodes are not waited
+	 * for; if they never agree, the newest version any of them has. Nodes
+	 * not having the key do not make a quorum, a node that just joined has
+	 * none of its keys yet, so a key is only reported missing once all
+	 * answered, or after Config.HOP_TIMEOUT at most. Once all answered,
+	 * nodes found behind are sent the newest version in the background
+	 * @param id: key's ring id
+	 * @param key
+	 * @return VALUE or NOTHING; null if no node answered in time
+	 */
+	private Message quorumRead (final long id, final byte[] key) {
+		NodeRef owner = find_successor(id);
+		if (owner == null)
+			return null;
+		NodeRef[] theirs = successors;
+		if (!owner.equals(localAddress)) {
+			Message response = Helper.request(owner, new Message(Message.YOURSUCCLIST));
+			theirs = response != null && response.getType() == Message.MYSUCCLIST ? response.getList() : new NodeRef[0];
+		}
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>(Config.READ_REPLICAS);
+		list.add(owner);
+		for (NodeRef s : theirs) {
+			if (list.size() >= Config.READ_REPLICAS)
+				break;
+			if (!list.contains(s))
+				list.add(s);
+		}
+		final NodeRef[] nodes = list.toArray(new NodeRef[list.size()]);
+		final int quorum = Config.READ_QUORUM > 0 ? Math.min(Config.READ_QUORUM, nodes.length) : nodes.length / 2 + 1;
+
+		// count answers by version, keys not stored are not counted
+		final ArrayList<CompletableFuture<Message>> reads = new ArrayList<CompletableFuture<Message>>(nodes.length);
+		final CompletableFuture<Message> answer = new CompletableFuture<Message>();
+		final HashMap<Long, Integer> votes = new HashMap<Long, Integer>();
+		final int[] answered = new int[1];
+		Message read = new Message(Message.READ, key, null);
+		for (NodeRef n : nodes) {
+			reads.add(n.equals(localAddress) ? CompletableFuture.completedFuture(readLocal(key)) 
+					: Helper.requestAsync(n, read));
+		}
+		for (CompletableFuture<Message> r : reads) {
+			r.thenAccept(reply -> {
+				synchronized (votes) {
+					answered[0]++;
+					if (reply != null && reply.getType() == Message.VERSIONED 
+							&& votes.merge(versionOf(reply), 1, Integer::sum) >= quorum)
+						answer.complete(toClient(reply));
+					if (answered[0] == nodes.length)
+						answer.complete(toClient(newest(reads)));
+				}
+			});
+		}
+		CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[nodes.length]))
+				.thenRunAsync(() -> repair(id, key, nodes, reads), Scheduler.executor());
+		try {
+			return answer.get(Config.HOP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+
+			// nodes still silent are given up on, newest answer so far wins
+			synchronized (votes) {
+				return toClient(newest(reads));
 			}
-			updateIthFinger(1, successor);
 		}
+	}
 
-		// start all threads	
-		listener.start();
-		stabilize.start();
-		fix_fingers.start();
-		ask_predecessor.start();
+	/**
+	 * Send the newest version of a key to the nodes that answered a read
+	 * with an older one or without it; a newest tombstone only to nodes
+	 * still having an older value. A key found in no node is left alone
+	 * @param id
+	 * @param key
+	 * @param nodes
+	 * @param reads: their answers, all done
+	 */
+	private void repair (long id, byte[] key, NodeRef[] nodes, List<CompletableFuture<Message>> reads) {
+		Message newest = newest(reads);
+		if (newest == null || newest.getType() != Message.VERSIONED)
+			return;
+		long version = versionOf(newest);
+		boolean deleted = isDeleted(newest);
+		Page page = new Page();
+		page.add(id, key, stamp(newest.getIds()[0], newest.getValue()));
+		Message sent = page.toMessage(Message.REPLICATE);
+		for (int i = 0; i < nodes.length; i++) {
+			Message reply = reads.get(i).getNow(null);
+			if (reply == null || versionOf(reply) >= version || (deleted && versionOf(reply) == 0))
+				continue;
+			if (nodes[i].equals(localAddress))
+				storeReplicas(sent);
+			else
+				Helper.requestAsync(nodes[i], sent);
+		}
+	}
 
-		return true;
+	/**
+	 * Answer a READ from store or replicas, whichever has the newer version
+	 * @param key
+	 * @return VERSIONED, or NOTHING if key is in neither
+	 */
+	public Message readLocal (byte[] key) {
+		long id = Helper.hashKey(key);
+		byte[] stamped = store.get(id, key);
+		byte[] replica = replicas.get(id, key);
+		if (stamped == null || (replica != null && versionOf(replica) > versionOf(stamped)))
+			stamped = replica;
+		if (stamped == null)
+			return new Message(Message.NOTHING);
+		return new Message(Message.VERSIONED, new long[] {ByteBuffer.wrap(stamped).getLong()}, valueOf(stamped));
 	}
 
 	/**
-	 * Notify successor that this node should be its predecessor
-	 * @param successor
-	 * @return successor's response
+	 * Get the version of a READ answer
+	 * @param reply: VERSIONED or NOTHING
+	 * @return version, 0 if key is not stored
 	 */
-	public String notify(InetSocketAddress successor) {
-		if (successor!=null && !successor.equals(localAddress))
-			return Helper.sendRequest(successor, "IAMPRE_"+localAddress.getAddress().toString()+":"+localAddress.getPort());
-		else
+	private static long versionOf (Message reply) {
+		if (reply.getType() != Message.VERSIONED || reply.getIds().length != 1)
+			return 0;
+		return reply.getIds()[0] & ~DELETED;
+	}
+
+	/**
+	 * Check if a READ answer is a tombstone
+	 * @param reply: VERSIONED or NOTHING
+	 * @return true if the node has the key deleted
+	 */
+	private static boolean isDeleted (Message reply) {
+		return versionOf(reply) != 0 && (reply.getIds()[0] & DELETED) != 0;
+	}
+
+	/**
+	 * Get the answer with the newest version
+	 * @param reads: READ answers
+	 * @return answer, null if none arrived
+	 */
+	private static Message newest (List<CompletableFuture<Message>> reads) {
+		Message ret = null;
+		for (CompletableFuture<Message> read : reads) {
+			Message reply = read.getNow(null);
+			if (reply != null && (ret == null || versionOf(reply) > versionOf(ret)))
+				ret = reply;
+		}
+		return ret;
+	}
+
+	/**
+	 * Turn a READ answer into the answer of a client's GET
+	 * @param reply: VERSIONED or NOTHING, might be null
+	 * @return VALUE or NOTHING, null if reply is null
+	 */
+	private static Message toClient (Message reply) {
+		if (reply == null)
 			return null;
+		if (reply.getType() != Message.VERSIONED || isDeleted(reply))
+			return new Message(Message.NOTHING);
+		return new Message(Message.VALUE, (byte[]) null, reply.getValue());
 	}
 
 	/**
-	 * Being notified by another node, set it as my predecessor if it is.
-	 * @param newpre
+	 * Find the successors of many ids at once. Ids are sorted around the
+	 * ring from this node: those up to successor belong to it, the others
+	 * are grouped by the closest finger preceding them, and each group is
+	 * forwarded to its finger in one FINDSUCCS message, all groups at the
+	 * same time. The finger does the same with its group, so the number
+	 * of messages grows with the number of distinct owners, not of ids.
+	 * A group whose finger fails is looked up one id at a time.
+	 * @param ids
+	 * @return successor of each id, in the order of ids
 	 */
-	public void notified (InetSocketAddress newpre) {
-		if (predecessor == null || predecessor.equals(localAddress)) {
-			this.setPredecessor(newpre);
+	public NodeRef[] find_successors (long[] ids) {
+		NodeRef[] ret = new NodeRef[ids.length];
+		NodeRef successor = getSuccessor();
+		if (successor == null || successor.equals(localAddress)) {
+			Arrays.fill(ret, localAddress);
+			return ret;
 		}
-		else {
-			long oldpre_id = Helper.hashSocketAddress(predecessor);
-			long local_relative_id = Helper.computeRelativeId(localId, oldpre_id);
-			long newpre_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(newpre), oldpre_id);
-			if (newpre_relative_id > 0 && newpre_relative_id < local_relative_id)
-				this.setPredecessor(newpre);
+
+		// order ids clockwise from this node
+		Integer[] order = new Integer[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(Helper.computeRelativeId(ids[a], localId), 
+				Helper.computeRelativeId(ids[b], localId)));
+
+		// ids up to successor are done, the rest go in contiguous groups,
+		// one per closest preceding finger
+		ArrayList<NodeRef> targets = new ArrayList<NodeRef>();
+		ArrayList<ArrayList<Integer>> groups = new ArrayList<ArrayList<Integer>>();
+		boolean successor_alive = !FailureDetector.isDead(successor);
+		for (Integer i : order) {
+			if (successor_alive && isBetween(ids[i], localAddress, successor)) {
+				ret[i] = successor;
+				continue;
+			}
+			NodeRef f = closest_preceding_finger(ids[i]);
+			int last = targets.size() - 1;
+			if (last >= 0 && targets.get(last).equals(f))
+				groups.get(last).add(i);
+			else {
+				targets.add(f);
+				ArrayList<Integer> group = new ArrayList<Integer>();
+				group.add(i);
+				groups.add(group);
+			}
 		}
+
+		// forward every group at once
+		ArrayList<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>(targets.size());
+		for (int g = 0; g < targets.size(); g++) {
+			NodeRef f = targets.get(g);
+			if (f.equals(localAddress)) {
+				futures.add(CompletableFuture.completedFuture(null));
+				continue;
+			}
+			ArrayList<Integer> group = groups.get(g);
+			long[] group_ids = new long[group.size()];
+			for (int j = 0; j < group_ids.length; j++)
+				group_ids[j] = ids[group.get(j)];
+			futures.add(Helper.requestAsync(f, new Message(Message.FINDSUCCS, group_ids), Config.LOOKUP_TIMEOUT));
+		}
+
+		// collect owners, look up the ids of failed groups one by one
+		for (int g = 0; g < targets.size(); g++) {
+			ArrayList<Integer> group = groups.get(g);
+			Message response = futures.get(g).join();
+			NodeRef[] owners = null;
+			if (response != null && response.getType() == Message.FOUNDSUCCS) {
+				long[] group_ids = new long[group.size()];
+				for (int j = 0; j < group_ids.length; j++)
+					group_ids[j] = ids[group.get(j)];
+				owners = Helper.ownersOf(group_ids, response.getList());
+			}
+			for (int j = 0; j < group.size(); j++) {
+				int i = group.get(j);
+				ret[i] = owners != null && owners[j] != null ? owners[j] : find_successor(ids[i]);
+			}
+		}
+		return ret;
 	}
 
 	/**
-	 * Ask current node to find id's successor.
+	 * Find id's successor asking alpha closest preceding nodes at once at
+	 * each step, each for its successor and its own closest fingers. The
+	 * first good answer wins and the others are ignored, so one slow or
+	 * dead node does not stall the lookup
 	 * @param id
-	 * @return id's successor's socket address
+	 * @param alpha: nodes asked at once
+	 * @return id's successor, null if every node asked at some step failed
 	 */
-	public InetSocketAddress find_successor (long id) {
+	private NodeRef find_successor_parallel (long id, int alpha) {
+		NodeRef successor = getSuccessor();
+		if (successor == null || successor.equals(localAddress))
+			return localAddress;
+		if (isBetween(id, localAddress, successor) && !FailureDetector.isDead(successor))
+			return successor;
+		NodeRef[] candidates = closest_preceding_fingers(id, alpha);
+		if (candidates.length == 0)
+			return null;
 
-		// initialize return value as this node's successor (might be null)
-		InetSocketAddress ret = this.getSuccessor();
+		// each step gets closer to id, a path longer than the ring's bits
+		// means something is wrong
+		for (int step = 0; step <= 32; step++) {
+			final NodeRef[] asked = candidates;
+			ArrayList<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>(asked.length);
+			for (NodeRef c : asked) {
+				futures.add(Helper.requestAsync(c, new Message(Message.CLOSESTLIST, id)));
+			}
+			Message answer = null;
+			NodeRef from = null;
+			try {
+				answer = firstAnswer(futures).get(Config.HOP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				answer = null;
+			}
+			if (answer == null)
+				return null;
+			for (int i = 0; i < asked.length; i++) {
+				if (futures.get(i).getNow(null) == answer)
+					from = asked[i];
+			}
 
-		// find predecessor
-		InetSocketAddress pre = find_predecessor(id);
+			// id falls between answering node and its successor
+			NodeRef from_successor = answer.getAddress();
+			if (isBetween(id, from, from_successor) && !FailureDetector.isDead(from_successor)) {
+				lookup_cache.put(from, from_successor);
+				return from_successor;
+			}
 
-		// if other node found, ask it for its successor
-		if (!pre.equals(localAddress))
-			ret = Helper.requestAddress(pre, "YOURSUCC");
+			// else go on with its closest fingers that are closer to id
+			ArrayList<NodeRef> next = new ArrayList<NodeRef>(alpha);
+			long from_relative = Helper.computeRelativeId(id, from.getId());
+			for (NodeRef c : answer.getList()) {
+				if (next.size() >= alpha)
+					break;
+				long c_relative = Helper.computeRelativeId(c.getId(), from.getId());
+				if (c_relative > 0 && c_relative < from_relative && !FailureDetector.isDead(c))
+					next.add(c);
+			}
 
-		// if ret is still null, set it as local node, return
-		if (ret == null)
-			ret = localAddress;
+			// answering node knows nothing closer, ask it the usual way
+			if (next.isEmpty())
+				return null;
+			candidates = next.toArray(new NodeRef[next.size()]);
+		}
+		return null;
+	}
 
-		return ret;
+	/**
+	 * Combine futures of responses into the first non-null one
+	 * @param futures
+	 * @return future of the first response, null if all of them are null
+	 */
+	private static CompletableFuture<Message> firstAnswer (ArrayList<CompletableFuture<Message>> futures) {
+		final CompletableFuture<Message> first = new CompletableFuture<Message>();
+		final AtomicInteger left = new AtomicInteger(futures.size());
+		for (CompletableFuture<Message> f : futures) {
+			f.thenAccept(response -> {
+				if (response != null && response.getType() == Message.MYCLOSESTLIST)
+					first.complete(response);
+				else if (left.decrementAndGet() == 0)
+					first.complete(null);
+			});
+		}
+		return first;
+	}
+
+	/**
+	 * Get up to k closest live nodes preceding id, from finger table and 
+	 * successor list, closest first. Nothing is probed, callers ask 
+	 * several of them at once instead
+	 * @param findid
+	 * @param k
+	 * @return nodes, empty if local node is the closest
+	 */
+	public NodeRef[] closest_preceding_fingers (long findid, int k) {
+		long findid_relative = Helper.computeRelativeId(findid, localId);
+		ArrayList<NodeRef> found = new ArrayList<NodeRef>();
+		FingerTable table = finger;
+		for (int i = 32; i > 0; i--) {
+			NodeRef f = table.get(i);
+			long f_relative = table.getRelativeId(i);
+			if (f != null && f_relative > 0 && f_relative < findid_relative && !found.contains(f) && !FailureDetector.isDead(f))
+				found.add(f);
+		}
+		for (NodeRef s : successors) {
+			long s_relative = Helper.computeRelativeId(s.getId(), localId);
+			if (s_relative > 0 && s_relative < findid_relative && !found.contains(s) && !FailureDetector.isDead(s))
+				found.add(s);
+		}
+
+		// closest to id first
+		found.sort((a, b) -> Long.compare(Helper.computeRelativeId(b.getId(), localId), 
+				Helper.computeRelativeId(a.getId(), localId)));
+		if (found.size() > k)
+			return found.subList(0, k).toArray(new NodeRef[k]);
+		return found.toArray(new NodeRef[found.size()]);
 	}
 
 	/**
@@ -131,19 +1644,19 @@ public class Node {
 	 * @param id
 	 * @return id's successor's socket address
 	 */
-	private InetSocketAddress find_predecessor (long findid) {
-		InetSocketAddress n = this.localAddress;
-		InetSocketAddress n_successor = this.getSuccessor();
-		InetSocketAddress most_recently_alive = this.localAddress;
+	private NodeRef find_predecessor (long findid) {
+		NodeRef n = this.localAddress;
+		NodeRef n_successor = this.getSuccessor();
+		NodeRef most_recently_alive = this.localAddress;
 		long n_successor_relative_id = 0;
 		if (n_successor != null)
-			n_successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(n_successor), Helper.hashSocketAddress(n));
-		long findid_relative_id = Helper.computeRelativeId(findid, Helper.hashSocketAddress(n));
+			n_successor_relative_id = Helper.computeRelativeId(n_successor.getId(), n.getId());
+		long findid_relative_id = Helper.computeRelativeId(findid, n.getId());
 
 		while (!(findid_relative_id > 0 && findid_relative_id <= n_successor_relative_id)) {
 
 			// temporarily save current node
-			InetSocketAddress pre_n = n;
+			NodeRef pre_n = n;
 
 			// if current node is local node, find my closest
 			if (n.equals(this.localAddress)) {
@@ -152,12 +1665,12 @@ public class Node {
 
 			// else current node is remote node, sent request to it for its closest
 			else {
-				InetSocketAddress result = Helper.requestAddress(n, "CLOSEST_" + findid);
+				NodeRef result = Helper.requestAddress(n, new Message(Message.CLOSEST, findid));
 
 				// if fail to get response, set n to most recently 
 				if (result == null) {
 					n = most_recently_alive;
-					n_successor = Helper.requestAddress(n, "YOURSUCC");
+					n_successor = Helper.requestAddress(n, new Message(Message.YOURSUCC));
 					if (n_successor==null) {
 						System.out.println("It's not possible.");
 						return localAddress;
@@ -174,20 +1687,29 @@ public class Node {
 					// set n as most recently alive
 					most_recently_alive = n;		
 					// ask "result" for its successor
-					n_successor = Helper.requestAddress(result, "YOURSUCC");	
+					n_successor = Helper.requestAddress(result, new Message(Message.YOURSUCC));	
 					// if we can get its response, then "result" must be our next n
 					if (n_successor!=null) {
 						n = result;
 					}
-					// else n sticks, ask n's successor
+					// else n sticks, step along n's successor list
+					// past the dead node
 					else {
-						n_successor = Helper.requestAddress(n, "YOURSUCC");
+						NodeRef[] step = stepAlongSuccessors(n, findid);
+						if (step != null) {
+							n = step[0];
+							n_successor = step[1];
+						}
+						if (n_successor == null)
+							n_successor = Helper.requestAddress(n, new Message(Message.YOURSUCC));
+						if (n_successor == null)
+							return n;
 					}
 				}
 
 				// compute relative ids for while loop judgement
-				n_successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(n_successor), Helper.hashSocketAddress(n));
-				findid_relative_id = Helper.computeRelativeId(findid, Helper.hashSocketAddress(n));
+				n_successor_relative_id = Helper.computeRelativeId(n_successor.getId(), n.getId());
+				findid_relative_id = Helper.computeRelativeId(findid, n.getId());
 			}
 			if (pre_n.equals(n))
 				break;
@@ -200,24 +1722,43 @@ public class Node {
 	 * @param findid
 	 * @return closest finger preceding node's socket address
 	 */
-	public InetSocketAddress closest_preceding_finger (long findid) {
+	public NodeRef closest_preceding_finger (long findid) {
 		long findid_relative = Helper.computeRelativeId(findid, localId);
 
-		// check from last item in finger table
+		// the farthest node of successor list preceding findid 
+		// is a candidate as good as any finger before it
+		NodeRef list_best = null;
+		long list_best_relative_id = 0;
+		for (NodeRef s : successors) {
+			long s_relative_id = Helper.computeRelativeId(s.getId(), localId);
+			if (s_relative_id > list_best_relative_id && s_relative_id < findid_relative && !FailureDetector.isDead(s)) {
+				list_best = s;
+				list_best_relative_id = s_relative_id;
+			}
+		}
+
+		// check from last item in a snapshot of finger table
+		FingerTable table = finger;
 		for (int i = 32; i > 0; i--) {
-			InetSocketAddress ith_finger = finger.get(i);
+			NodeRef ith_finger = table.get(i);
 			if (ith_finger == null) {
 				continue;
 			}
-			long ith_finger_id = Helper.hashSocketAddress(ith_finger);
-			long ith_finger_relative_id = Helper.computeRelativeId(ith_finger_id, localId);
+			long ith_finger_relative_id = table.getRelativeId(i);
 
-			// if its relative id is the closest, check if its alive
+			// if its relative id is the closest, check if its alive,
+			// probe it only if recent traffic cannot tell
 			if (ith_finger_relative_id > 0 && ith_finger_relative_id < findid_relative)  {
-				String response  = Helper.sendRequest(ith_finger, "KEEP");
+
+				// successor list has a closer one
+				if (list_best != null && list_best_relative_id > ith_finger_relative_id) {
+					if (isUsable(list_best))
+						return list_best;
+					list_best = null;
+				}
 
 				//it is alive, return it
-				if (response!=null &&  response.equals("ALIVE")) {
+				if (isUsable(ith_finger)) {
 					return ith_finger;
 				}
 
@@ -227,39 +1768,156 @@ public class Node {
 				}
 			}
 		}
+		if (list_best != null && isUsable(list_best))
+			return list_best;
 		return localAddress;
 	}
 
+	/**
+	 * Check if a node can be routed to, probe it only if
+	 * recent traffic cannot tell
+	 * @param n
+	 * @return true if n is trusted or answers a probe
+	 */
+	private boolean isUsable (NodeRef n) {
+		return FailureDetector.isTrusted(n) || (FailureDetector.isSuspected(n) && Helper.ping(n));
+	}
+
+	/**
+	 * Get a node's successor list, local one or by asking it
+	 * @param n
+	 * @return successor list, null if n cannot be reached
+	 */
+	private NodeRef[] successorListOf (NodeRef n) {
+		if (n.equals(localAddress))
+			return successors;
+		Message response = Helper.request(n, new Message(Message.YOURSUCCLIST));
+		if (response == null || response.getType() != Message.MYSUCCLIST)
+			return null;
+		return response.getList();
+	}
+
+	/**
+	 * Get first node of a list not known to be dead
+	 * @param list
+	 * @return live node, null if list is null or has none
+	 */
+	private NodeRef firstAlive (NodeRef[] list) {
+		if (list == null)
+			return null;
+		for (NodeRef s : list) {
+			if (!FailureDetector.isDead(s))
+				return s;
+		}
+		return null;
+	}
+
+	/**
+	 * Step from n along its successor list toward findid, 
+	 * skipping nodes known to be dead
+	 * @param n: a live node preceding findid
+	 * @param findid
+	 * @return {the last live list node preceding findid (or n), 
+	 * the first live list node after it (might be null)}, 
+	 * null if list cannot be fetched
+	 */
+	private NodeRef[] stepAlongSuccessors (NodeRef n, long findid) {
+		NodeRef[] list = successorListOf(n);
+		if (list == null)
+			return null;
+		long findid_relative = Helper.computeRelativeId(findid, n.getId());
+		NodeRef pre = n;
+		for (NodeRef s : list) {
+			if (s.equals(n) || FailureDetector.isDead(s))
+				continue;
+			long s_relative_id = Helper.computeRelativeId(s.getId(), n.getId());
+			if (s_relative_id > 0 && s_relative_id < findid_relative)
+				pre = s;
+			else
+				return new NodeRef[] {pre, s};
+		}
+		return new NodeRef[] {pre, null};
+	}
+
 	/**
 	 * Update the finger table based on parameters.
 	 * Synchronize, all threads trying to modify 
-	 * finger table only through this method. 
+	 * finger table only through this method. Each change
+	 * publishes a new snapshot, readers never lock.
+	 * Only in-memory changes are made under the lock, 
+	 * notifying a new successor and walking the ring to
+	 * repair a deleted one are issued asynchronously after.
 	 * @param i: index or command code
 	 * @param value
 	 */
-	public synchronized void updateFingers(int i, InetSocketAddress value) {
+	public void updateFingers(int i, NodeRef value) {
+		NodeRef old_successor = null;
+		NodeRef new_successor = null;
+		boolean repair = false;
+
+		boolean changed = false;
+		synchronized (this) {
+			FingerTable old_table = finger;
+			old_successor = getSuccessor();
+
+			// valid index in [1, 32], just update the ith finger
+			if (i > 0 && i <= 32) {
+				updateIthFinger(i, value);
+			}
 
-		// valid index in [1, 32], just update the ith finger
-		if (i > 0 && i <= 32) {
-			updateIthFinger(i, value);
-		}
+			// caller wants to delete
+			else if (i == -1) {
+				repair = deleteSuccessor();
+			}
 
-		// caller wants to delete
-		else if (i == -1) {
-			deleteSuccessor();
-		}
+			// caller wants to delete a finger in table
+			else if (i == -2) {
+				deleteCertainFinger(value);
+
+			}
 
-		// caller wants to delete a finger in table
-		else if (i == -2) {
-			deleteCertainFinger(value);
+			// caller wants to fill successor
+			else if (i == -3) {
+				fillSuccessor();
+			}
 
+			new_successor = getSuccessor();
+			if (new_successor != old_successor)
+				reheadSuccessorList(new_successor);
+			changed = finger != old_table;
 		}
-
-		// caller wants to fill successor
-		else if (i == -3) {
-			fillSuccessor();
+		if (changed) {
+			churn();
+
+			// drop cached ranges this change proves wrong
+			if (i > 0)
+				lookup_cache.seen(value);
+			else if (i == -1)
+				lookup_cache.gone(old_successor);
+			else if (i == -2)
+				lookup_cache.gone(value);
+			if (new_successor != old_successor)
+				lookup_cache.seen(new_successor);
 		}
 
+		// if successor changed, notify the new successor; replicas
+		// change with it, e.g. a deleted successor is one no more
+		if (new_successor != null && !new_successor.equals(old_successor) && !new_successor.equals(localAddress)) {
+			notifyAsync(new_successor);
+		}
+		if (new_successor != old_successor)
+			replicator.check();
+
+		// walk the ring for the real successor
+		if (repair) {
+			final NodeRef guess = new_successor;
+			Scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					repairSuccessor(guess);
+				}
+			});
+		}
 	}
 
 	/**
@@ -267,29 +1925,27 @@ public class Node {
 	 * @param i: index
 	 * @param value
 	 */
-	private void updateIthFinger(int i, InetSocketAddress value) {
-		finger.put(i, value);
-
-		// if the updated one is successor, notify the new successor
-		if (i == 1 && value != null && !value.equals(localAddress)) {
-			notify(value);
-		}
+	private void updateIthFinger(int i, NodeRef value) {
+		finger = finger.with(i, value);
 	}
 
 	/**
 	 * Delete successor and all following fingers equal to successor
+	 * @return true if the successor filled in its place is only a guess
+	 * and the ring should be walked to find the real one
 	 */
-	private void deleteSuccessor() {
-		InetSocketAddress successor = getSuccessor();
+	private boolean deleteSuccessor() {
+		NodeRef successor = getSuccessor();
 
 		//nothing to delete, just return
 		if (successor == null)
-			return;
+			return false;
 
 		// find the last existence of successor in the finger table
+		FingerTable table = finger;
 		int i = 32;
 		for (i = 32; i > 0; i--) {
-			InetSocketAddress ithfinger = finger.get(i);
+			NodeRef ithfinger = table.get(i);
 			if (ithfinger != null && ithfinger.equals(successor))
 				break;
 		}
@@ -303,59 +1959,132 @@ public class Node {
 		if (predecessor!= null && predecessor.equals(successor))
 			setPredecessor(null);
 
+		// take the next live node in successor list, 
+		// it is the real successor unless the list is stale
+		for (NodeRef s : successors) {
+			if (!s.equals(successor) && !s.equals(localAddress) && !FailureDetector.isDead(s)) {
+				updateIthFinger(1, s);
+				return false;
+			}
+		}
+
 		// try to fill successor
 		fillSuccessor();
-		successor = getSuccessor();
 
-		// if successor is still null or local node, 
-		// and the predecessor is another node, keep asking 
-		// it's predecessor until find local node's new successor
-		if ((successor == null || successor.equals(successor)) && predecessor!=null && !predecessor.equals(localAddress)) {
-			InetSocketAddress p = predecessor;
-			InetSocketAddress p_pre = null;
-			while (true) {
-				p_pre = Helper.requestAddress(p, "YOURPRE");
-				if (p_pre == null)
-					break;
+		// the filled successor comes from finger table or predecessor,
+		// if the predecessor is another node, the ring needs a walk
+		NodeRef pre = predecessor;
+		return pre != null && !pre.equals(localAddress);
+	}
 
-				// if p's predecessor is node is just deleted, 
-				// or itself (nothing found in p), or local address,
-				// p is current node's new successor, break
-				if (p_pre.equals(p) || p_pre.equals(localAddress)|| p_pre.equals(successor)) {
-					break;
-				}
+	/**
+	 * Make successor list start with a new successor: drop the nodes 
+	 * before it if the list has it, else put it in front
+	 * @param successor: new successor, might be null
+	 */
+	private void reheadSuccessorList(NodeRef successor) {
+		NodeRef[] list = successors;
+		if (successor == null || successor.equals(localAddress)) {
+			successors = new NodeRef[0];
+			return;
+		}
+		for (int i = 0; i < list.length; i++) {
+			if (list[i].equals(successor)) {
+				successors = Arrays.copyOfRange(list, i, list.length);
+				return;
+			}
+		}
+		NodeRef[] n = new NodeRef[Math.min(list.length + 1, Config.SUCCESSORS)];
+		n[0] = successor;
+		System.arraycopy(list, 0, n, 1, n.length - 1);
+		successors = n;
+	}
 
-				// else, keep asking
-				else {
-					p = p_pre;
-				}
+	/**
+	 * Rebuild successor list from successor and successor's own list, 
+	 * unless successor changed meanwhile
+	 * @param successor: successor the list was asked from
+	 * @param theirs: successor's successor list
+	 */
+	public synchronized void updateSuccessorList(NodeRef successor, NodeRef[] theirs) {
+		if (successor == null || !successor.equals(getSuccessor()))
+			return;
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>(Config.SUCCESSORS);
+		list.add(successor);
+		for (NodeRef s : theirs) {
+			if (list.size() >= Config.SUCCESSORS)
+				break;
+
+			// stop at local node, the ring is shorter than the list
+			if (s.equals(localAddress))
+				break;
+			if (!list.contains(s))
+				list.add(s);
+		}
+		successors = list.toArray(new NodeRef[list.size()]);
+		for (NodeRef s : successors)
+			lookup_cache.seen(s);
+		replicator.check();
+	}
+
+	/**
+	 * Run in background: keep asking predecessor for its predecessor
+	 * until find local node's new successor, then take it as successor
+	 * unless successor changed meanwhile
+	 * @param guess: successor filled in when the old one was deleted
+	 */
+	private void repairSuccessor(NodeRef guess) {
+		NodeRef p = predecessor;
+		if (p == null || p.equals(localAddress))
+			return;
+		NodeRef p_pre = null;
+		while (true) {
+			p_pre = Helper.requestAddress(p, new Message(Message.YOURPRE));
+			if (p_pre == null)
+				break;
+
+			// if p's predecessor is node is just deleted, 
+			// or itself (nothing found in p), or local address,
+			// p is current node's new successor, break
+			if (p_pre.equals(p) || p_pre.equals(localAddress)|| p_pre.equals(guess)) {
+				break;
+			}
+
+			// else, keep asking
+			else {
+				p = p_pre;
 			}
+		}
 
-			// update successor
-			updateIthFinger(1, p);
+		// update successor
+		boolean changed = false;
+		synchronized (this) {
+			NodeRef successor = getSuccessor();
+			if (successor == guess || (successor != null && successor.equals(guess))) {
+				updateIthFinger(1, p);
+				changed = !p.equals(successor);
+			}
 		}
+		if (changed && !p.equals(localAddress))
+			notifyAsync(p);
 	}
 
 	/**
 	 * Delete a node from the finger table, here "delete" means deleting all existence of this node 
 	 * @param f
 	 */
-	private void deleteCertainFinger(InetSocketAddress f) {
-		for (int i = 32; i > 0; i--) {
-			InetSocketAddress ithfinger = finger.get(i);
-			if (ithfinger != null && ithfinger.equals(f))
-				finger.put(i, null);
-		}
+	private void deleteCertainFinger(NodeRef f) {
+		finger = finger.without(f);
 	}
 
 	/**
 	 * Try to fill successor with candidates in finger table or even predecessor
 	 */
 	private void fillSuccessor() {
-		InetSocketAddress successor = this.getSuccessor();
+		NodeRef successor = this.getSuccessor();
 		if (successor == null || successor.equals(localAddress)) {
 			for (int i = 2; i <= 32; i++) {
-				InetSocketAddress ithfinger = finger.get(i);
+				NodeRef ithfinger = finger.get(i);
 				if (ithfinger!=null && !ithfinger.equals(localAddress)) {
 					for (int j = i-1; j >=1; j--) {
 						updateIthFinger(j, ithfinger);
@@ -383,8 +2112,32 @@ public class Node {
 	 * Set predecessor using a new value.
 	 * @param pre
 	 */
-	private synchronized void setPredecessor(InetSocketAddress pre) {
+	private synchronized void setPredecessor(NodeRef pre) {
+		if (pre == predecessor)
+			return;
+
+		// a new predecessor splits a cached range,
+		// a cleared one was found dead
+		if (pre != null)
+			lookup_cache.seen(pre);
+		else
+			lookup_cache.gone(predecessor);
+		if (pre == null && predecessor != null && !predecessor.equals(localAddress))
+			lost_predecessor = predecessor;
+		else if (pre != null)
+			lost_predecessor = null;
 		predecessor = pre;
+		churn();
+	}
+
+	/**
+	 * Report a topology change: speed all maintenance threads 
+	 * back up to their shortest period
+	 */
+	public void churn() {
+		stabilize_pacer.churn();
+		fix_pacer.churn();
+		check_pacer.churn();
 	}
 
 
@@ -397,21 +2150,58 @@ public class Node {
 		return localId;
 	}
 
-	public InetSocketAddress getAddress() {
+	public NodeRef getAddress() {
 		return localAddress;
 	}
 
-	public InetSocketAddress getPredecessor() {
+	public NodeRef getPredecessor() {
 		return predecessor;
 	}
 
-	public InetSocketAddress getSuccessor() {
-		if (finger != null && finger.size() > 0) {
-			return finger.get(1);
+	public NodeRef getSuccessor() {
+		FingerTable table = finger;
+		if (table != null) {
+			return table.get(1);
 		}
 		return null;
 	}
 
+	public NodeRef[] getSuccessorList() {
+		return successors;
+	}
+
+	/**
+	 * Get every other node this node knows: predecessor, distinct fingers
+	 * and successor list
+	 * @return nodes, without local node
+	 */
+	public NodeRef[] getKnownNodes() {
+		LinkedHashSet<NodeRef> known = new LinkedHashSet<NodeRef>();
+		NodeRef predecessor = this.predecessor;
+		if (predecessor != null)
+			known.add(predecessor);
+		FingerTable table = finger;
+		for (int i = 1; i <= 32; i++) {
+			if (table.get(i) != null)
+				known.add(table.get(i));
+		}
+		known.addAll(Arrays.asList(successors));
+		known.remove(localAddress);
+		return known.toArray(new NodeRef[known.size()]);
+	}
+
+	public Pacer getStabilizePacer() {
+		return stabilize_pacer;
+	}
+
+	public Pacer getFixPacer() {
+		return fix_pacer;
+	}
+
+	public Pacer getCheckPacer() {
+		return check_pacer;
+	}
+
 	/**
 	 * Print functions
 	 */
@@ -419,7 +2209,8 @@ public class Node {
 	public void printNeighbors () {
 		System.out.println("\nYou are listening on port "+localAddress.getPort()+"."
 				+ "\nYour position is "+Helper.hexIdAndPosition(localAddress)+".");
-		InetSocketAddress successor = finger.get(1);
+		NodeRef successor = getSuccessor();
+		NodeRef predecessor = this.predecessor;
 		
 		// if it cannot find both predecessor and successor
 		if ((predecessor == null || predecessor.equals(localAddress)) && (successor == null || successor.equals(localAddress))) {
@@ -431,7 +2222,7 @@ public class Node {
 		// else, it can find either predecessor or successor
 		else {
 			if (predecessor != null) {
-				System.out.println("Your predecessor is node "+predecessor.getAddress().toString()+", "
+				System.out.println("Your predecessor is node "+predecessor.getAddress().getAddress().toString()+", "
 						+ "port "+predecessor.getPort()+ ", position "+Helper.hexIdAndPosition(predecessor)+".");
 			}
 			else {
@@ -439,7 +2230,7 @@ public class Node {
 			}
 
 			if (successor != null) {
-				System.out.println("Your successor is node "+successor.getAddress().toString()+", "
+				System.out.println("Your successor is node "+successor.getAddress().getAddress().toString()+", "
 						+ "port "+successor.getPort()+ ", position "+Helper.hexIdAndPosition(successor)+".");
 			}
 			else {
@@ -451,14 +2242,16 @@ public class Node {
 	public void printDataStructure () {
 		System.out.println("\n==============================================================");
 		System.out.println("\nLOCAL:\t\t\t\t"+localAddress.toString()+"\t"+Helper.hexIdAndPosition(localAddress));
+		NodeRef predecessor = this.predecessor;
 		if (predecessor != null)
 			System.out.println("\nPREDECESSOR:\t\t\t"+predecessor.toString()+"\t"+Helper.hexIdAndPosition(predecessor));
 		else 
 			System.out.println("\nPREDECESSOR:\t\t\tNULL");
 		System.out.println("\nFINGER TABLE:\n");
+		FingerTable table = finger;
 		for (int i = 1; i <= 32; i++) {
-			long ithstart = Helper.ithStart(Helper.hashSocketAddress(localAddress),i);
-			InetSocketAddress f = finger.get(i);
+			long ithstart = Helper.ithStart(localAddress.getId(),i);
+			NodeRef f = table.get(i);
 			StringBuilder sb = new StringBuilder();
 			sb.append(i+"\t"+ Helper.longTo8DigitHex(ithstart)+"\t\t");
 			if (f!= null)
@@ -468,6 +2261,19 @@ public class Node {
 				sb.append("NULL");
 			System.out.println(sb.toString());
 		}
+		System.out.println("\nSUCCESSOR LIST:\n");
+		NodeRef[] list = successors;
+		for (int i = 0; i < list.length; i++) {
+			System.out.println((i+1)+"\t"+list[i].toString()+"\t"+Helper.hexIdAndPosition(list[i]));
+		}
+		System.out.println("\nSTORE:\t\t\t\t"+store.size()+" keys, "+store.bytes()+" bytes, "
+				+replicas.size()+" replicas");
+		System.out.println("\nLOOKUP CACHE:\t\t\t"+lookup_cache.size()+" ranges, "
+				+lookup_cache.getHits()+" hits, "+lookup_cache.getRefuted()+" refuted, "+lookup_cache.getMisses()+" misses");
+		System.out.println("\nPERIODS:\n");
+		System.out.println("stabilize\t\t\t"+stabilize_pacer.getPeriod()+" ms");
+		System.out.println("fix fingers\t\t\t"+fix_pacer.getPeriod()+" ms");
+		System.out.println("ask predecessor\t\t\t"+check_pacer.getPeriod()+" ms");
 		System.out.println("\n==============================================================\n");
 	}
 
@@ -477,11 +2283,43 @@ public class Node {
 	public void stopAllThreads() {
 		if (listener != null)
 			listener.toDie();
+		if (nio_listener != null)
+			nio_listener.toDie();
 		if (fix_fingers != null)
 			fix_fingers.toDie();
 		if (stabilize != null)
 			stabilize.toDie();
 		if (ask_predecessor != null)
 			ask_predecessor.toDie();
+		if (prune_keys != null)
+			prune_keys.toDie();
+	}
+
+	/**
+	 * A lookup in flight that others may wait for
+	 */
+	private static class Flight {
+		final long id;
+		final CompletableFuture<NodeRef> owner;
+
+		Flight (long id) {
+			this.id = id;
+			owner = new CompletableFuture<NodeRef>();
+		}
+	}
+
+	/**
+	 * Keys in (low, high] being handed over to node to
+	 */
+	private static class Handoff {
+		final long low;
+		final long high;
+		final NodeRef to;
+
+		Handoff (long low, long high, NodeRef to) {
+			this.low = low;
+			this.high = high;
+			this.to = to;
+		}
 	}
 }
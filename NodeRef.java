@@ -0,0 +1,106 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable reference to a chord node: its socket address together with
+ * its ring identifier and its text and binary wire forms, all computed
+ * once. References are interned per address, so looking at a node's id
+ * is a field read instead of a SHA-1 hash, and the same peer is always
+ * represented by the same object.
+ * @author Chuan Xia
+ *
+ */
+
+public class NodeRef {
+
+	private static final ConcurrentHashMap<InetSocketAddress, NodeRef> interned =
+			new ConcurrentHashMap<InetSocketAddress, NodeRef>();
+
+	private final InetSocketAddress address;
+	private final long id;
+	private final String text;
+	private final byte[] wire;
+
+	private NodeRef (InetSocketAddress address) {
+		this.address = address;
+		this.id = Helper.hashSocketAddress(address);
+		this.text = "/"+address.getAddress().getHostAddress()+":"+address.getPort();
+
+		// address length | address bytes | port
+		byte[] ip = address.getAddress().getAddress();
+		wire = new byte[ip.length + 3];
+		wire[0] = (byte) ip.length;
+		System.arraycopy(ip, 0, wire, 1, ip.length);
+		wire[ip.length + 1] = (byte) (address.getPort() >> 8);
+		wire[ip.length + 2] = (byte) address.getPort();
+	}
+
+	/**
+	 * Get the interned reference of a socket address
+	 * @param address
+	 * @return reference, null if address is null
+	 */
+	public static NodeRef of (InetSocketAddress address) {
+		if (address == null)
+			return null;
+		NodeRef ref = interned.get(address);
+		if (ref == null) {
+			interned.putIfAbsent(address, new NodeRef(address));
+			ref = interned.get(address);
+		}
+		return ref;
+	}
+
+	/**
+	 * Getters
+	 * @return the variable caller wants
+	 */
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getPort() {
+		return address.getPort();
+	}
+
+	/**
+	 * Text form used in text messages, e.g. /10.0.0.1:8001
+	 * @return address in text form
+	 */
+	public String toText() {
+		return text;
+	}
+
+	/**
+	 * Binary form used in frames: address length, address bytes and
+	 * 2-byte port. The array is shared, do not modify it
+	 * @return address in binary form
+	 */
+	public byte[] getWireForm() {
+		return wire;
+	}
+
+	@Override
+	public boolean equals (Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof NodeRef))
+			return false;
+		return address.equals(((NodeRef) o).address);
+	}
+
+	@Override
+	public int hashCode() {
+		return address.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return address.toString();
+	}
+}
@@ -0,0 +1,550 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * KeyStore outside the Java heap, so the data a node holds adds nothing
+ * to garbage collection and a large store cannot pause the node long
+ * enough for its neighbours to take it for dead.
+ * Records (int id | int key length | int value length | key | value) live
+ * in direct buffer slabs. Each slab is cut into chunks of one size class,
+ * powers of two from MIN_CHUNK up to the slab size; a record larger than
+ * a slab gets a slab of its own. Freed chunks are chained through the
+ * chunks themselves, and when a class holds more than two slabs' worth of
+ * free chunks its emptiest slab is compacted: its records move to free
+ * chunks of other slabs and the slab is released.
+ * The index is an open-addressing table, also in a direct buffer, of
+ * (record address, id) slots. An id's home slot is its position on the
+ * ring scaled to the table, so slots follow ring order and a range of ids
+ * is found by scanning only the slots of that range. Collisions probe
+ * linearly, and removal shifts the probe chain back instead of leaving
+ * tombstones. On the heap there is only a handful of counters per slab.
+ * @author Chuan Xia
+ *
+ */
+
+public class OffHeapStore implements KeyStore {
+
+	// record header: id, key length, value length
+	private static final int HEADER = 12;
+
+	// smallest chunk, large enough to hold a free chunk's mark and link
+	private static final int MIN_CHUNK = 32;
+
+	// index slot: record address, id
+	private static final int SLOT = 12;
+
+	// most index slots, the index buffer must stay under 2 GB
+	private static final int MAX_SLOTS = 1 << 27;
+
+	// a free chunk has -1 where a record has its key length
+	private static final int FREE = -1;
+
+	private final int slab_size;
+
+	// size classes: chunk size MIN_CHUNK << c; class 'large' is a record
+	// with a slab of its own
+	private final int classes;
+	private final int large;
+
+	// slabs, by number; a record's address is (slab + 1) << 32 | offset,
+	// so address 0 means an empty index slot
+	private ByteBuffer[] slabs;
+	private int[] slab_class;
+	private int[] slab_live;
+	private int[] slab_top;
+
+	// per class: head of free chunk chain, free chunks, slabs, and the
+	// slab still being cut into chunks (-1 if none)
+	private long[] free_head;
+	private long[] free_count;
+	private int[] class_slabs;
+	private int[] cutting;
+
+	private ByteBuffer index;
+	private int slots;
+	private int size;
+	private long bytes;
+
+	public OffHeapStore () {
+		this(Config.STORE_SLAB);
+	}
+
+	/**
+	 * Constructor
+	 * @param slab_size: bytes of a slab, a power of two
+	 */
+	public OffHeapStore (int slab_size) {
+		this.slab_size = slab_size;
+		classes = Integer.numberOfTrailingZeros(slab_size / MIN_CHUNK) + 1;
+		large = classes;
+		slabs = new ByteBuffer[16];
+		slab_class = new int[16];
+		slab_live = new int[16];
+		slab_top = new int[16];
+		free_head = new long[classes];
+		free_count = new long[classes];
+		class_slabs = new int[classes];
+		cutting = new int[classes];
+		for (int c = 0; c < classes; c++)
+			cutting[c] = -1;
+		slots = 1024;
+		index = ByteBuffer.allocateDirect(slots * SLOT);
+	}
+
+	@Override
+	public synchronized byte[] get (long id, byte[] key) {
+		int i = find(id, key);
+		if (i < 0)
+			return null;
+		return readValue(refAt(i));
+	}
+
+	@Override
+	public synchronized byte[] put (long id, byte[] key, byte[] value) {
+		int record = HEADER + key.length + value.length;
+		int i = find(id, key);
+
+		// key is here: rewrite the value in place if the record stays in
+		// its class, else move it to a chunk of the right size
+		if (i >= 0) {
+			long ref = refAt(i);
+			byte[] old = readValue(ref);
+			if (classOf(record) == slab_class[slabOf(ref)] && slab_class[slabOf(ref)] != large) {
+				write(ref, id, key, value);
+			}
+			else {
+				long moved = allocate(record);
+				write(moved, id, key, value);
+				setSlot(i, moved, id);
+				release(ref);
+			}
+			bytes += value.length - old.length;
+			return old;
+		}
+
+		// new key, grow index first if it gets too full
+		if ((size + 1) > slots / 4 * 3)
+			resize();
+		long ref = allocate(record);
+		write(ref, id, key, value);
+		i = home(id);
+		while (refAt(i) != 0)
+			i = (i + 1) & (slots - 1);
+		setSlot(i, ref, id);
+		size++;
+		bytes += key.length + value.length;
+		return null;
+	}
+
+	@Override
+	public synchronized byte[] remove (long id, byte[] key) {
+		int i = find(id, key);
+		if (i < 0)
+			return null;
+		long ref = refAt(i);
+		byte[] old = readValue(ref);
+		deleteSlot(i);
+		release(ref);
+		size--;
+		bytes -= key.length + old.length;
+		return old;
+	}
+
+	/**
+	 * Slots only roughly follow ring order: a probe chain (cluster) holds
+	 * ids in the order they were put. But an id past an empty slot is 
+	 * always greater than every id before it, so ids are sorted one 
+	 * cluster at a time. A cluster running past the end of the table 
+	 * goes on at slot 0; its slots there are taken at the end of the scan
+	 */
+	@Override
+	public synchronized void scan (long after, long last, Visitor visitor) {
+		if (after >= last)
+			return;
+		int end = home(last);
+
+		// id and slot of each key of the cluster, packed to sort by id
+		long[] cluster = new long[16];
+		int count = 0;
+		for (long p = home(after + 1); p < 2L * slots; p++) {
+			int i = (int) (p & (slots - 1));
+			long ref = refAt(i);
+
+			// end of a cluster, visit its ids in order
+			if (ref == 0) {
+				Arrays.sort(cluster, 0, count);
+				for (int j = 0; j < count; j++) {
+					boolean go_on = visitSlot((int) (cluster[j] & (MAX_SLOTS - 1)), visitor);
+					while (j + 1 < count && (cluster[j + 1] >>> 27) == (cluster[j] >>> 27))
+						go_on &= visitSlot((int) (cluster[++j] & (MAX_SLOTS - 1)), visitor);
+					if (!go_on)
+						return;
+				}
+				count = 0;
+				if (p > end)
+					return;
+				continue;
+			}
+
+			// slots at or past the table's end only hold wrapped entries
+			long id = idAt(i);
+			boolean wrapped = home(id) > i;
+			if (id > after && id <= last && wrapped == (p >= slots)) {
+				if (count == cluster.length)
+					cluster = Arrays.copyOf(cluster, count * 2);
+				cluster[count++] = id << 27 | i;
+			}
+		}
+	}
+
+	private boolean visitSlot (int i, Visitor visitor) {
+		long ref = refAt(i);
+		ByteBuffer slab = slabs[slabOf(ref)].duplicate();
+		int offset = offsetOf(ref);
+		byte[] key = new byte[slab.getInt(offset + 4)];
+		slab.position(offset + HEADER);
+		slab.get(key);
+		return visitor.visit(idAt(i), key, readValue(ref));
+	}
+
+	@Override
+	public synchronized int size () {
+		return size;
+	}
+
+	@Override
+	public synchronized long bytes () {
+		return bytes;
+	}
+
+	/**
+	 * Get bytes held off the heap, slabs and index
+	 * @return bytes
+	 */
+	public synchronized long reserved () {
+		long ret = index.capacity();
+		for (ByteBuffer slab : slabs) {
+			if (slab != null)
+				ret += slab.capacity();
+		}
+		return ret;
+	}
+
+	/* index */
+
+	private int home (long id) {
+		return (int) ((id * slots) >>> 32);
+	}
+
+	private long refAt (int i) {
+		return index.getLong(i * SLOT);
+	}
+
+	private long idAt (int i) {
+		return index.getInt(i * SLOT + 8) & 0xFFFFFFFFL;
+	}
+
+	private void setSlot (int i, long ref, long id) {
+		index.putLong(i * SLOT, ref);
+		index.putInt(i * SLOT + 8, (int) id);
+	}
+
+	/**
+	 * Find key's slot
+	 * @param id
+	 * @param key
+	 * @return slot, -1 if key is not stored
+	 */
+	private int find (long id, byte[] key) {
+		int i = home(id);
+		long ref = 0;
+		while ((ref = refAt(i)) != 0) {
+			if (idAt(i) == id && keyEquals(ref, key))
+				return i;
+			i = (i + 1) & (slots - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the slot pointing to a record
+	 * @param ref: record address
+	 * @param id: record's id
+	 * @return slot, -1 if no slot points to ref
+	 */
+	private int slotOf (long ref, long id) {
+		int i = home(id);
+		long r = 0;
+		while ((r = refAt(i)) != 0) {
+			if (r == ref)
+				return i;
+			i = (i + 1) & (slots - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Empty slot i, moving back later slots of its probe chain that
+	 * would no longer be reachable from their home slot
+	 * @param i
+	 */
+	private void deleteSlot (int i) {
+		int j = i;
+		while (true) {
+			j = (j + 1) & (slots - 1);
+			long ref = refAt(j);
+			if (ref == 0)
+				break;
+			long id = idAt(j);
+			int k = home(id);
+
+			// move j to i unless its home lies cyclically in (i, j]
+			boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+			if (!stays) {
+				setSlot(i, ref, id);
+				i = j;
+			}
+		}
+		setSlot(i, 0, 0);
+	}
+
+	/**
+	 * Double the index and put every slot again
+	 */
+	private void resize () {
+		if (slots >= MAX_SLOTS)
+			throw new IllegalStateException("Store index is full.");
+		ByteBuffer old = index;
+		int old_slots = slots;
+		slots *= 2;
+		index = ByteBuffer.allocateDirect(slots * SLOT);
+		for (int j = 0; j < old_slots; j++) {
+			long ref = old.getLong(j * SLOT);
+			if (ref == 0)
+				continue;
+			long id = old.getInt(j * SLOT + 8) & 0xFFFFFFFFL;
+			int i = home(id);
+			while (refAt(i) != 0)
+				i = (i + 1) & (slots - 1);
+			setSlot(i, ref, id);
+		}
+	}
+
+	/* records */
+
+	private static int slabOf (long ref) {
+		return (int) (ref >>> 32) - 1;
+	}
+
+	private static int offsetOf (long ref) {
+		return (int) ref;
+	}
+
+	private static long refOf (int slab, int offset) {
+		return ((long) (slab + 1) << 32) | offset;
+	}
+
+	private boolean keyEquals (long ref, byte[] key) {
+		ByteBuffer slab = slabs[slabOf(ref)];
+		int offset = offsetOf(ref);
+		if (slab.getInt(offset + 4) != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++) {
+			if (slab.get(offset + HEADER + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private byte[] readValue (long ref) {
+		ByteBuffer slab = slabs[slabOf(ref)].duplicate();
+		int offset = offsetOf(ref);
+		byte[] value = new byte[slab.getInt(offset + 8)];
+		slab.position(offset + HEADER + slab.getInt(offset + 4));
+		slab.get(value);
+		return value;
+	}
+
+	private void write (long ref, long id, byte[] key, byte[] value) {
+		ByteBuffer slab = slabs[slabOf(ref)].duplicate();
+		int offset = offsetOf(ref);
+		slab.putInt(offset, (int) id);
+		slab.putInt(offset + 4, key.length);
+		slab.putInt(offset + 8, value.length);
+		slab.position(offset + HEADER);
+		slab.put(key);
+		slab.put(value);
+	}
+
+	/* allocation */
+
+	/**
+	 * Get the size class of a record
+	 * @param record: bytes of the record
+	 * @return class, 'large' if the record needs a slab of its own
+	 */
+	private int classOf (int record) {
+		if (record > slab_size)
+			return large;
+		int c = 32 - Integer.numberOfLeadingZeros(Math.max(record, MIN_CHUNK) - 1)
+				- Integer.numberOfTrailingZeros(MIN_CHUNK);
+		return c;
+	}
+
+	private int chunkSize (int c) {
+		return MIN_CHUNK << c;
+	}
+
+	/**
+	 * Get a chunk for a record: a free chunk of its class, or the next
+	 * one cut from the class' current slab, or a new slab
+	 * @param record: bytes of the record
+	 * @return address of the chunk
+	 */
+	private long allocate (int record) {
+		int c = classOf(record);
+		if (c == large) {
+			int s = newSlab(large, record);
+			slab_top[s] = record;
+			slab_live[s] = 1;
+			return refOf(s, 0);
+		}
+		long ref = free_head[c];
+		if (ref != 0) {
+			ByteBuffer slab = slabs[slabOf(ref)];
+			free_head[c] = slab.getLong(offsetOf(ref) + 8);
+			free_count[c]--;
+			slab_live[slabOf(ref)]++;
+			return ref;
+		}
+		int s = cutting[c];
+		if (s < 0 || slab_top[s] + chunkSize(c) > slab_size) {
+			s = newSlab(c, slab_size);
+			cutting[c] = s;
+		}
+		ref = refOf(s, slab_top[s]);
+		slab_top[s] += chunkSize(c);
+		slab_live[s]++;
+		return ref;
+	}
+
+	/**
+	 * Give a record's chunk back, and compact its class if it holds too
+	 * many free chunks
+	 * @param ref: address of the record
+	 */
+	private void release (long ref) {
+		int s = slabOf(ref);
+		int c = slab_class[s];
+		if (c == large) {
+			dropSlab(s);
+			return;
+		}
+		ByteBuffer slab = slabs[s];
+		slab.putInt(offsetOf(ref) + 4, FREE);
+		slab.putLong(offsetOf(ref) + 8, free_head[c]);
+		free_head[c] = ref;
+		free_count[c]++;
+		slab_live[s]--;
+		if (free_count[c] > 2L * (slab_size / chunkSize(c)))
+			compact(c);
+	}
+
+	/**
+	 * Empty the slab of class c with the fewest records: unlink its free
+	 * chunks, move its records to other slabs and release it
+	 * @param c: size class
+	 */
+	private void compact (int c) {
+		int victim = -1;
+		for (int s = 0; s < slabs.length; s++) {
+			if (slabs[s] != null && slab_class[s] == c && (victim < 0 || slab_live[s] < slab_live[victim]))
+				victim = s;
+		}
+		if (victim < 0 || class_slabs[c] < 2)
+			return;
+
+		// nothing more is cut from or handed out of the victim
+		if (cutting[c] == victim)
+			cutting[c] = -1;
+		long kept = 0;
+		long tail = 0;
+		for (long ref = free_head[c]; ref != 0; ) {
+			long next = slabs[slabOf(ref)].getLong(offsetOf(ref) + 8);
+			if (slabOf(ref) != victim) {
+				if (tail == 0)
+					free_head[c] = ref;
+				else
+					slabs[slabOf(tail)].putLong(offsetOf(tail) + 8, ref);
+				tail = ref;
+				kept++;
+			}
+			ref = next;
+		}
+		if (tail == 0)
+			free_head[c] = 0;
+		else
+			slabs[slabOf(tail)].putLong(offsetOf(tail) + 8, 0);
+		free_count[c] = kept;
+
+		// move its records and point their slots to the new chunks
+		ByteBuffer from = slabs[victim];
+		for (int offset = 0; offset + chunkSize(c) <= slab_top[victim]; offset += chunkSize(c)) {
+			if (from.getInt(offset + 4) == FREE)
+				continue;
+			long id = from.getInt(offset) & 0xFFFFFFFFL;
+			int record = HEADER + from.getInt(offset + 4) + from.getInt(offset + 8);
+			long ref = allocate(record);
+			ByteBuffer src = from.duplicate();
+			src.position(offset);
+			src.limit(offset + record);
+			ByteBuffer dst = slabs[slabOf(ref)].duplicate();
+			dst.position(offsetOf(ref));
+			dst.put(src);
+			int i = slotOf(refOf(victim, offset), id);
+			if (i >= 0)
+				setSlot(i, ref, id);
+		}
+		dropSlab(victim);
+	}
+
+	/**
+	 * Create a slab
+	 * @param c: its size class
+	 * @param capacity: bytes
+	 * @return slab number
+	 */
+	private int newSlab (int c, int capacity) {
+		int s = 0;
+		while (s < slabs.length && slabs[s] != null)
+			s++;
+		if (s == slabs.length) {
+			int n = slabs.length * 2;
+			ByteBuffer[] grown = new ByteBuffer[n];
+			System.arraycopy(slabs, 0, grown, 0, slabs.length);
+			slabs = grown;
+			slab_class = Arrays.copyOf(slab_class, n);
+			slab_live = Arrays.copyOf(slab_live, n);
+			slab_top = Arrays.copyOf(slab_top, n);
+		}
+		slabs[s] = ByteBuffer.allocateDirect(capacity);
+		slab_class[s] = c;
+		slab_live[s] = 0;
+		slab_top[s] = 0;
+		if (c != large)
+			class_slabs[c]++;
+		return s;
+	}
+
+	/**
+	 * Release a slab, its memory is freed once the buffer is collected
+	 * @param s: slab number
+	 */
+	private void dropSlab (int s) {
+		if (slab_class[s] != large)
+			class_slabs[slab_class[s]]--;
+		slabs[s] = null;
+		slab_live[s] = 0;
+		slab_top[s] = 0;
+	}
+}
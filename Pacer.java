@@ -0,0 +1,79 @@
+/**
+ * Adaptive period of a periodic maintenance task. Every quiet round
+ * doubles the period up to a maximum, so a stable ring costs little
+ * background traffic; a churn signal, such as a changed successor or
+ * predecessor or a dead finger, drops it back to the minimum at once
+ * and lets the waiting task know.
+ * @author Chuan Xia
+ *
+ */
+
+public class Pacer {
+
+	private final long min;
+	private final long max;
+	private long period;
+	private boolean churned;
+	private Runnable onChurn;
+
+	/**
+	 * Constructor, start at the minimum period
+	 * @param min: shortest period in milliseconds
+	 * @param max: longest period in milliseconds
+	 */
+	public Pacer (long min, long max) {
+		this.min = min;
+		this.max = Math.max(min, max);
+		period = min;
+		churned = false;
+		onChurn = null;
+	}
+
+	/**
+	 * End a round: back off if nothing was reported since the last round
+	 * ended, else stay at the minimum period
+	 * @return milliseconds to wait before the next round
+	 */
+	public synchronized long next() {
+		if (churned)
+			churned = false;
+		else
+			period = Math.min(period * 2, max);
+		return period;
+	}
+
+	/**
+	 * Report churn: go back to the minimum period and wake the waiting task
+	 */
+	public void churn() {
+		Runnable listener = null;
+		synchronized (this) {
+			period = min;
+			churned = true;
+			listener = onChurn;
+		}
+		if (listener != null)
+			listener.run();
+	}
+
+	/**
+	 * Set what to run when churn is reported, e.g. bring the next round 
+	 * of a waiting task forward
+	 * @param listener
+	 */
+	public synchronized void setOnChurn(Runnable listener) {
+		onChurn = listener;
+	}
+
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * Get current period
+	 * @return milliseconds between two rounds
+	 */
+	public synchronized long getPeriod() {
+		return period;
+	}
+}
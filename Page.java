@@ -0,0 +1,112 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A page of keys sent to another node in one message, either filled by a
+ * scan of a store or written to key by key. The message carries the ids
+ * of the keys, and each key and value packed in its value as int length |
+ * bytes; a value length of -1 marks a deleted key.
+ * @author Chuan Xia
+ *
+ */
+
+public class Page implements KeyStore.Visitor {
+
+	// most keys and bytes in a page by default
+	public static final int KEYS = 512;
+	public static final int BYTES = 1 << 20;
+
+	private final int max_keys;
+	private final int max_bytes;
+	private long[] ids = new long[64];
+	private int count = 0;
+	private final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+
+	public Page () {
+		this(KEYS, BYTES);
+	}
+
+	/**
+	 * Constructor
+	 * @param max_keys: keys after which the page is full
+	 * @param max_bytes: packed bytes after which the page is full
+	 */
+	public Page (int max_keys, int max_bytes) {
+		this.max_keys = max_keys;
+		this.max_bytes = max_bytes;
+	}
+
+	@Override
+	public boolean visit (long id, byte[] key, byte[] value) {
+		add(id, key, value);
+		return !isFull();
+	}
+
+	/**
+	 * Add a key to the page
+	 * @param id: key's ring id
+	 * @param key
+	 * @param value: null if key was deleted
+	 */
+	public void add (long id, byte[] key, byte[] value) {
+		if (count == ids.length)
+			ids = Arrays.copyOf(ids, count * 2);
+		ids[count++] = id;
+		packed.write(ByteBuffer.allocate(4).putInt(key.length).array(), 0, 4);
+		packed.write(key, 0, key.length);
+		packed.write(ByteBuffer.allocate(4).putInt(value == null ? -1 : value.length).array(), 0, 4);
+		if (value != null)
+			packed.write(value, 0, value.length);
+	}
+
+	public boolean isFull () {
+		return count >= max_keys || packed.size() >= max_bytes;
+	}
+
+	public int size () {
+		return count;
+	}
+
+	/**
+	 * Get the page as a message
+	 * @param type: GIVEKEYS or REPLICATE
+	 * @return message
+	 */
+	public Message toMessage (byte type) {
+		return new Message(type, Arrays.copyOf(ids, count), packed.toByteArray());
+	}
+
+	/**
+	 * Read the keys of a page message
+	 * @param page: GIVEKEYS or REPLICATE
+	 * @param visitor: told every key in page order, value null if the key
+	 * was deleted; its return value is ignored
+	 * @return false if the page is malformed, then no key is visited
+	 */
+	public static boolean unpack (Message page, KeyStore.Visitor visitor) {
+		long[] ids = page.getIds();
+		byte[][] keys = new byte[ids.length][];
+		byte[][] values = new byte[ids.length][];
+		if (page.getValue() == null)
+			return false;
+		ByteBuffer packed = ByteBuffer.wrap(page.getValue());
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				keys[i] = new byte[packed.getInt()];
+				packed.get(keys[i]);
+				int length = packed.getInt();
+				if (length >= 0) {
+					values[i] = new byte[length];
+					packed.get(values[i]);
+				}
+			}
+		} catch (BufferUnderflowException | NegativeArraySizeException e) {
+			return false;
+		}
+		for (int i = 0; i < ids.length; i++)
+			visitor.visit(ids[i], keys[i], values[i]);
+		return true;
+	}
+}
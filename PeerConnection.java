@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived connection to one peer.
+ * A text connection carries one request at a time: the request line is
+ * written and the caller blocks until the reply line comes back.
+ * A binary connection is multiplexed: each frame carries a request id,
+ * any number of threads may have requests in flight on it at once, and a
+ * reader thread hands every reply to the request waiting for its id,
+ * whatever order the replies arrive in.
+ * @author Chuan Xia
+ *
+ */
+
+public class PeerConnection {
+
+	private InetSocketAddress peer;
+	private Socket socket;
+	private DataInputStream input;
+	private OutputStream output;
+	private boolean binary;
+	private volatile boolean closed;
+	private volatile long lastUsed;
+	private AtomicInteger nextReqId;
+	private ConcurrentHashMap<Integer, CompletableFuture<Message>> pending;
+
+	/**
+	 * Constructor, open the socket to peer
+	 * @param peer: peer's socket address
+	 * @param connectTimeout: milliseconds to wait for the connection
+	 * @param readTimeout: milliseconds to wait for a reply
+	 * @throws IOException if peer cannot be reached
+	 */
+	public PeerConnection (InetSocketAddress peer, int connectTimeout, int readTimeout) throws IOException {
+		this.peer = peer;
+		socket = new Socket();
+		try {
+			socket.connect(peer, connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			socket.setTcpNoDelay(true);
+			input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			output = socket.getOutputStream();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		binary = false;
+		closed = false;
+		nextReqId = new AtomicInteger();
+		pending = new ConcurrentHashMap<Integer, CompletableFuture<Message>>();
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Ask peer to switch this connection to binary frames, start reading
+	 * replies in background if it accepted
+	 * @return true if peer accepted, false if it only speaks text;
+	 * in the latter case the peer closes the connection
+	 * @throws IOException if connection is broken
+	 */
+	public boolean negotiate () throws IOException {
+		String response = exchange(Message.HELLO);
+		binary = Message.HELLO_OK.equals(response);
+		if (binary) {
+
+			// replies are waited for per request, the reader itself
+			// must not time out on a quiet connection
+			socket.setSoTimeout(0);
+			Scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					readFrames();
+				}
+			});
+		}
+		return binary;
+	}
+
+	/**
+	 * Send request on a binary connection without waiting for its reply
+	 * @param req: request
+	 * @return future of the reply, completed with null if the connection
+	 * breaks before the reply arrives
+	 */
+	public CompletableFuture<Message> send (Message req) {
+		final int reqId = nextReqId.incrementAndGet();
+		CompletableFuture<Message> future = new CompletableFuture<Message>();
+		pending.put(reqId, future);
+		future.whenComplete((response, error) -> pending.remove(reqId));
+		if (closed) {
+			future.complete(null);
+			return future;
+		}
+		ByteBuffer frame = req.toFrame(reqId);
+		try {
+			synchronized (output) {
+				output.write(frame.array(), 0, frame.limit());
+				output.flush();
+			}
+		} catch (IOException e) {
+			close();
+		}
+		lastUsed = System.currentTimeMillis();
+		return future;
+	}
+
+	/**
+	 * Send request on a binary connection and wait for its reply
+	 * @param req: request
+	 * @param timeout: milliseconds to wait for the reply
+	 * @return reply, null if the connection broke or reply timed out
+	 */
+	public Message call (Message req, long timeout) {
+		CompletableFuture<Message> future = send(req);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.complete(null);
+		} catch (InterruptedException e) {
+			future.complete(null);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// futures are only completed normally
+		}
+		return null;
+	}
+
+	/**
+	 * Run in reader thread: hand each reply frame to the request waiting
+	 * for its id, until the connection breaks
+	 */
+	private void readFrames () {
+		try {
+			while (true) {
+				int length = input.readInt();
+				if (length <= 0 || length > Message.MAX_FRAME)
+					break;
+				byte[] body = new byte[length];
+				input.readFully(body);
+				lastUsed = System.currentTimeMillis();
+				Message response = Message.fromFrame(ByteBuffer.wrap(body));
+				if (response == null)
+					continue;
+				CompletableFuture<Message> future = pending.get(response.getReqId());
+				if (future != null)
+					future.complete(response);
+			}
+		} catch (IOException e) {
+			// connection is broken, fall through
+		}
+		close();
+	}
+
+	/**
+	 * Write a text request and read its reply, on a text connection
+	 * @param req: request
+	 * @return reply, null if peer closed the connection or sent garbage
+	 * @throws IOException if connection is broken or reply timed out
+	 */
+	public Message exchange (Message req) throws IOException {
+		return Message.parseText(exchange(req.toText()));
+	}
+
+	/**
+	 * Write a text request and read its reply line
+	 * @param req: request line
+	 * @return reply line, null if peer closed the connection
+	 * @throws IOException if connection is broken or reply timed out
+	 */
+	public String exchange (String req) throws IOException {
+		output.write((req+"\n").getBytes());
+		output.flush();
+		String response = readLine(input);
+		lastUsed = System.currentTimeMillis();
+		return response;
+	}
+
+	/**
+	 * Read one line from a stream without buffering past its end, so the
+	 * same stream can carry binary frames after the line
+	 * @param in: input stream
+	 * @return line without line break, null if stream ended before it
+	 * @throws IOException
+	 */
+	public static String readLine (InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c = 0;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				return sb.length() == 0 ? null : sb.toString();
+			if (c != '\r')
+				sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Check if this connection has been idle for longer than timeout
+	 * @param now: current time in milliseconds
+	 * @param idleTimeout: allowed idle time in milliseconds
+	 * @return true if connection should be evicted
+	 */
+	public boolean isExpired (long now, long idleTimeout) {
+		return closed || (pending.isEmpty() && now - lastUsed > idleTimeout);
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public InetSocketAddress getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Close socket, ignore failure, and fail all requests still waiting
+	 */
+	public void close() {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do, socket is gone anyway
+		}
+		if (pending != null) {
+			for (CompletableFuture<Message> future : pending.values()) {
+				future.complete(null);
+			}
+		}
+	}
+}
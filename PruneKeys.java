@@ -0,0 +1,19 @@
+/**
+ * Prune keys task that periodically drops what deletes and ring changes
+ * leave behind: old tombstones, and replicas of ranges this node is no
+ * longer a replica of. Its period is fixed, churn does not speed it up.
+ * @author Chuan Xia
+ *
+ */
+
+public class PruneKeys extends MaintenanceTask {
+
+	public PruneKeys(Node _local) {
+		super(_local, new Pacer(Config.TOMBSTONE_TTL / 2, Config.TOMBSTONE_TTL / 2));
+	}
+
+	@Override
+	protected void round() {
+		local.pruneKeys();
+	}
+}
@@ -1,4 +1,5 @@
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 /**
@@ -12,6 +13,7 @@ public class Query {
 
 	private static InetSocketAddress localAddress;
 	private static Helper helper;
+	private static boolean recursive = false;
 
 	public static void main (String[] args) {
 
@@ -82,7 +84,10 @@ public class Query {
 			// begin to take user input
 			Scanner userinput = new Scanner(System.in);
 			while(true) {
-				System.out.println("\nPlease enter your search key (or type \"quit\" to leave): ");
+				System.out.println("\nPlease enter your search key (or type \"quit\" to leave, "
+						+ "\"recursive\" or \"iterative\" to switch lookup mode, "
+						+ "\"batch\" followed by keys to look them up at once, "
+						+ "\"put\" key value, \"get\" key or \"del\" key to use the stored data): ");
 				String command = null;
 				command = userinput.nextLine();
 				
@@ -91,11 +96,75 @@ public class Query {
 					System.exit(0);				
 				}
 				
+				// switch lookup mode
+				else if (command.equals("recursive") || command.equals("iterative")) {
+					recursive = command.equals("recursive");
+					System.out.println("\nLookups are now "+command+".");
+				}
+
+				// store, read or delete a key, the contacted node routes it
+				else if (command.startsWith("put ") || command.startsWith("get ") || command.startsWith("del ")) {
+					String[] parts = command.substring(4).trim().split("\\s+", 2);
+					byte type = command.startsWith("put ") ? Message.PUT : command.startsWith("get ") ? Message.GET : Message.DEL;
+					if (type == Message.PUT && parts.length < 2) {
+						System.out.println("\nUsage: put key value");
+						continue;
+					}
+					byte[] key = parts[0].getBytes(StandardCharsets.UTF_8);
+					byte[] value = type == Message.PUT ? parts[1].getBytes(StandardCharsets.UTF_8) : null;
+					Message reply = Helper.request(NodeRef.of(localAddress), new Message(type, key, value));
+					if (reply == null) {
+						System.out.println("The node your are contacting is disconnected. Now exit.");
+						System.exit(0);
+					}
+					System.out.println("\nKey "+parts[0]+" ("+Long.toHexString(Helper.hashKey(key))+"): ");
+					if (reply.getType() == Message.STORED)
+						System.out.println("stored.");
+					else if (reply.getType() == Message.VALUE)
+						System.out.println(new String(reply.getValue(), StandardCharsets.UTF_8));
+					else if (reply.getType() == Message.DELETED)
+						System.out.println("deleted.");
+					else if (type == Message.PUT)
+						System.out.println("not stored, its owner cannot be reached.");
+					else
+						System.out.println("not found.");
+				}
+
+				// batch search, one request for all keys
+				else if (command.startsWith("batch ")) {
+					String[] keys = command.substring(6).trim().split("\\s+");
+					long[] hashes = new long[keys.length];
+					StringBuilder sb = new StringBuilder("FINDSUCCS_");
+					for (int i = 0; i < keys.length; i++) {
+						hashes[i] = Helper.hashString(keys[i]);
+						sb.append(i > 0 ? "," : "").append(hashes[i]);
+					}
+					Message found = Message.parseText(Helper.sendRequest(localAddress, sb.toString()));
+					if (found == null || found.getType() != Message.FOUNDSUCCS) {
+						System.out.println("The node your are contacting is disconnected. Now exit.");
+						System.exit(0);
+					}
+					NodeRef[] owners = Helper.ownersOf(hashes, found.getList());
+					System.out.println("\nResponse from node "+localAddress.getAddress().toString()+", port "+localAddress.getPort()+", position "+Helper.hexIdAndPosition(localAddress)+":");
+					for (int i = 0; i < keys.length; i++) {
+						System.out.println(keys[i]+" ("+Long.toHexString(hashes[i])+"): Node "+owners[i].getAddress().getAddress().toString()
+								+", port "+owners[i].getPort()+", position "+Helper.hexIdAndPosition(owners[i]));
+					}
+				}
+
 				// search
 				else if (command.length() > 0){
 					long hash = Helper.hashString(command);
 					System.out.println("\nHash value is "+Long.toHexString(hash));
-					InetSocketAddress result = Helper.requestAddress(localAddress, "FINDSUCC_"+hash);
+					InetSocketAddress result = null;
+					Message found = null;
+					if (recursive) {
+						found = Message.parseText(Helper.sendRequest(localAddress, "RLOOKUP_"+hash));
+						if (found != null)
+							result = found.getAddress().getAddress();
+					}
+					else
+						result = Helper.requestAddress(localAddress, "FINDSUCC_"+hash);
 					
 					// if fail to send request, local node is disconnected, exit
 					if (result == null) {
@@ -106,6 +175,15 @@ public class Query {
 					// print out response
 					System.out.println("\nResponse from node "+localAddress.getAddress().toString()+", port "+localAddress.getPort()+", position "+Helper.hexIdAndPosition(localAddress)+":");
 					System.out.println("Node "+result.getAddress().toString()+", port "+result.getPort()+", position "+Helper.hexIdAndPosition(result ));
+
+					// recursive lookups also tell the path they took
+					if (found != null && found.getType() == Message.RFOUND) {
+						NodeRef[] path = found.getList();
+						StringBuilder sb = new StringBuilder();
+						for (NodeRef n : path)
+							sb.append(" ").append(n.getPort());
+						System.out.println("Hops: "+(path.length - 1)+", path (ports):"+sb.toString());
+					}
 				}
 			}
 		}
@@ -0,0 +1,165 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Copies the keys a node owns to its next Config.REPLICAS successors, so
+ * the successor taking over the range of a crashed node holds its keys
+ * already. A write is acknowledged as soon as the owner applied it, and
+ * queued here; one sender sends the queue in REPLICATE messages of up to
+ * Config.REPLICA_BATCH writes, to all replicas at once, while the next
+ * batch fills up behind it. A busy owner thus sends few large messages
+ * instead of a round trip per key, and since one batch is in flight at a
+ * time, replicas apply writes in the order the owner did. A successor
+ * that becomes a replica, or missed a batch, is sent all keys first.
+ * @author Chuan Xia
+ *
+ */
+
+public class Replicator {
+
+	private final Node local;
+
+	// batches of writes not sent yet, sender running
+	private final ArrayDeque<Page> queue;
+	private boolean sending;
+
+	// successors keys are copied to, the ones holding all keys, and
+	// when replicas that could not be sent all keys are tried again
+	private NodeRef[] replicas;
+	private final HashSet<NodeRef> synced;
+	private long retry_at;
+
+	public Replicator (Node local) {
+		this.local = local;
+		queue = new ArrayDeque<Page>();
+		replicas = new NodeRef[0];
+		synced = new HashSet<NodeRef>();
+	}
+
+	/**
+	 * Queue a write of a key this node owns
+	 * @param id: key's ring id
+	 * @param key
+	 * @param value: stamped value, a tombstone if key was deleted
+	 */
+	public synchronized void written (long id, byte[] key, byte[] value) {
+		if (Config.REPLICAS <= 0)
+			return;
+		Page last = queue.peekLast();
+		if (last == null || last.isFull()) {
+			last = new Page(Config.REPLICA_BATCH, Page.BYTES);
+			queue.add(last);
+		}
+		last.add(id, key, value);
+		wake();
+	}
+
+	/**
+	 * Successor list changed, replicas might have
+	 */
+	public synchronized void check () {
+		NodeRef[] now = replicasOf(local.getSuccessorList());
+		if (!Arrays.equals(now, replicas)) {
+			replicas = now;
+			synced.retainAll(Arrays.asList(now));
+		}
+		wake();
+	}
+
+	/**
+	 * Start the sender if there is something to send
+	 */
+	private void wake () {
+		if (sending)
+			return;
+		if (queue.isEmpty() && (synced.size() == replicas.length || System.currentTimeMillis() < retry_at))
+			return;
+		sending = true;
+		Scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				sendNext();
+			}
+		});
+	}
+
+	/**
+	 * Bring new replicas up to date, then send the next batch and run
+	 * again once every replica answered it
+	 */
+	private void sendNext () {
+		ArrayList<NodeRef> fresh = new ArrayList<NodeRef>();
+		synchronized (this) {
+			if (System.currentTimeMillis() >= retry_at) {
+				for (NodeRef r : replicas) {
+					if (!synced.contains(r))
+						fresh.add(r);
+				}
+			}
+		}
+
+		// writes queued meanwhile are sent after the copy, so a replica
+		// ends with the latest value even if the copy had an older one
+		for (NodeRef r : fresh) {
+			boolean copied = local.copyKeys(r);
+			synchronized (this) {
+				if (copied)
+					synced.add(r);
+				else
+					retry_at = System.currentTimeMillis() + Config.STABILIZE_MAX;
+			}
+		}
+
+		final Page batch;
+		final NodeRef[] to;
+		synchronized (this) {
+			batch = queue.poll();
+			if (batch == null) {
+				sending = false;
+				return;
+			}
+			to = synced.toArray(new NodeRef[synced.size()]);
+		}
+		Message sent = batch.toMessage(Message.REPLICATE);
+		final ArrayList<CompletableFuture<Message>> acks = new ArrayList<CompletableFuture<Message>>(to.length);
+		for (NodeRef r : to)
+			acks.add(Helper.requestAsync(r, sent));
+		CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[to.length])).whenComplete((done, e) -> {
+
+			// a replica that missed the batch gets all keys again
+			synchronized (this) {
+				for (int i = 0; i < to.length; i++) {
+					Message ack = acks.get(i).getNow(null);
+					if (ack == null || ack.getType() != Message.ACCEPTED)
+						synced.remove(to[i]);
+				}
+			}
+			Scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					sendNext();
+				}
+			});
+		});
+	}
+
+	/**
+	 * Get the replicas among successors: the first Config.REPLICAS of them
+	 * other than the local node
+	 * @param successors
+	 * @return replicas
+	 */
+	private NodeRef[] replicasOf (NodeRef[] successors) {
+		ArrayList<NodeRef> ret = new ArrayList<NodeRef>(Config.REPLICAS);
+		for (NodeRef s : successors) {
+			if (ret.size() >= Config.REPLICAS)
+				break;
+			if (!s.equals(local.getAddress()) && !ret.contains(s))
+				ret.add(s);
+		}
+		return ret.toArray(new NodeRef[ret.size()]);
+	}
+}
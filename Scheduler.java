@@ -0,0 +1,100 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads shared by all nodes in this process. A small timer only keeps
+ * track of when periodic tasks are due and hands them over; the rounds
+ * themselves, like any other work that may block on the network, run on
+ * a pool of workers that grows while work is waiting and shrinks back
+ * when it is idle. A process hosting thousands of nodes then keeps a
+ * thread only for work in progress instead of several per node.
+ * In virtual mode the workers are virtual threads, so lookups blocked
+ * on the network hold no platform thread and can number in the tens of
+ * thousands.
+ * @author Chuan Xia
+ *
+ */
+
+public class Scheduler {
+
+	private static final ThreadFactory daemons = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private static final ScheduledExecutorService timer =
+			Executors.newScheduledThreadPool(Config.TIMERS, daemons);
+
+	private static final ExecutorService workers = createWorkers();
+
+	/**
+	 * Create the worker pool, of virtual threads if selected and the
+	 * running Java has them (21 or later), else of platform threads
+	 * @return worker pool
+	 */
+	private static ExecutorService createWorkers () {
+		if (Config.useVirtualThreads()) {
+
+			// looked up by reflection so the code still builds on older Java
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads are not supported by this Java, "
+						+ "using platform threads.");
+			}
+		}
+		return Executors.newCachedThreadPool(daemons);
+	}
+
+	/**
+	 * Check if workers are virtual threads
+	 * @return true if virtual threads are in use
+	 */
+	public static boolean isVirtual () {
+		return !(workers instanceof ThreadPoolExecutor);
+	}
+
+	/**
+	 * Get the workers as an executor, e.g. to run the next step of an
+	 * asynchronous lookup
+	 * @return worker pool
+	 */
+	public static Executor executor () {
+		return workers;
+	}
+
+	/**
+	 * Run task on a worker as soon as possible
+	 * @param task
+	 */
+	public static void execute (Runnable task) {
+		workers.execute(task);
+	}
+
+	/**
+	 * Run task on a worker after a delay
+	 * @param task
+	 * @param delay: milliseconds to wait
+	 * @return handle to cancel task before it is due
+	 */
+	public static ScheduledFuture<?> schedule (final Runnable task, long delay) {
+		return timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				workers.execute(task);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+}
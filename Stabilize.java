@@ -1,71 +1,56 @@
-import java.net.InetSocketAddress;
 
 /**
- * Stabilize thread that periodically asks successor for its predecessor
+ * Stabilize task that periodically asks successor for its predecessor
  * and determine if current node should update or delete its successor.
  * @author Chuan Xia
  *
  */
 
-public class Stabilize extends Thread {
-	
-	private Node local;
-	private boolean alive;
+public class Stabilize extends MaintenanceTask {
 
 	public Stabilize(Node _local) {
-		local = _local;
-		alive = true;
+		super(_local, _local.getStabilizePacer());
 	}
 
 	@Override
-	public void run() {
-		while (alive) {
-			InetSocketAddress successor = local.getSuccessor();
-			if (successor == null || successor.equals(local.getAddress())) {
-				local.updateFingers(-3, null); //fill
-			}
-			successor = local.getSuccessor();
-			if (successor != null && !successor.equals(local.getAddress())) {
+	protected void round() {
+		NodeRef successor = local.getSuccessor();
+		if (successor == null || successor.equals(local.getAddress())) {
+			local.updateFingers(-3, null); //fill
+		}
+		successor = local.getSuccessor();
+		if (successor != null && !successor.equals(local.getAddress())) {
 
-				// try to get my successor's predecessor
-				InetSocketAddress x = Helper.requestAddress(successor, "YOURPRE");
+			// try to get my successor's predecessor
+			NodeRef x = Helper.requestAddress(successor, new Message(Message.YOURPRE));
 
-				// if bad connection with successor! delete successor
-				if (x == null) {
-					local.updateFingers(-1, null);
-				}
+			// if bad connection with successor! delete successor
+			if (x == null) {
+				local.updateFingers(-1, null);
+			}
 
-				// else if successor's predecessor is not itself
-				else if (!x.equals(successor)) {
-					long local_id = Helper.hashSocketAddress(local.getAddress());
-					long successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(successor), local_id);
-					long x_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(x),local_id);
-					if (x_relative_id>0 && x_relative_id < successor_relative_id) {
-						local.updateFingers(1,x);
-					}
-				}
-				
-				// successor's predecessor is successor itself, then notify successor
-				else {
-					local.notify(successor);
+			// else if successor's predecessor is not itself
+			else if (!x.equals(successor)) {
+				long local_id = local.getId();
+				long successor_relative_id = Helper.computeRelativeId(successor.getId(), local_id);
+				long x_relative_id = Helper.computeRelativeId(x.getId(),local_id);
+				if (x_relative_id>0 && x_relative_id < successor_relative_id) {
+					local.updateFingers(1,x);
 				}
 			}
+			
+			// successor's predecessor is successor itself, then notify successor
+			else {
+				local.notify(successor);
+			}
 
-			try {
-				Thread.sleep(60);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			// refresh successor list from successor's own list
+			successor = local.getSuccessor();
+			if (successor != null && !successor.equals(local.getAddress())) {
+				Message response = Helper.request(successor, new Message(Message.YOURSUCCLIST));
+				if (response != null && response.getType() == Message.MYSUCCLIST)
+					local.updateSuccessorList(successor, response.getList());
 			}
 		}
-
 	}
-
-	public void toDie() {
-		alive = false;
-	}
-
-
-
-
-
 }
@@ -1,12 +1,16 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Talker thread that processes request accepted by listener and writes
- * response to socket.
+ * Talker thread that processes requests arriving on a socket accepted by
+ * listener and writes responses back, until the peer closes the socket.
  * @author Chuan Xia
  *
  */
@@ -24,74 +28,223 @@ public class Talker implements Runnable{
 
 	public void run()
 	{
-		InputStream input = null;
-		OutputStream output = null;
 		try {
-			input = talkSocket.getInputStream();
-			String request = Helper.inputStreamToString(input);
-			String response = processRequest(request);
-			if (response != null) {
-				output = talkSocket.getOutputStream();
-				output.write(response.getBytes());
+
+			// replies to requests in flight together, like pipelined
+			// replication batches, must not wait for each other's ack
+			talkSocket.setTcpNoDelay(true);
+			DataInputStream input = new DataInputStream(new BufferedInputStream(talkSocket.getInputStream()));
+			OutputStream output = talkSocket.getOutputStream();
+
+			// keep serving request lines on this socket until the peer closes
+			// it, or a request cannot be answered, or the peer asks to
+			// switch to binary frames
+			while (true) {
+				String request = PeerConnection.readLine(input);
+				if (Message.HELLO.equals(request)) {
+					output.write((Message.HELLO_OK+"\n").getBytes());
+					output.flush();
+					serveFrames(input, output);
+					break;
+				}
+				String response = processRequest(local, request);
+				if (response == null)
+					break;
+				output.write((response+"\n").getBytes());
+				output.flush();
 			}
-			input.close();
 		} catch (IOException e) {
-			throw new RuntimeException(
-					"Cannot talk.\nServer port: "+local.getAddress().getPort()+"; Talker port: "+talkSocket.getPort(), e);
+			// peer is gone or connection is broken, just drop it
+		} finally {
+			try {
+				talkSocket.close();
+			} catch (IOException e) {
+				// nothing to do, socket is gone anyway
+			}
+		}
+	}
+
+	/**
+	 * Keep serving binary frames until the peer closes the socket or sends
+	 * a malformed frame. Requests are handled concurrently and each reply
+	 * is written, tagged with its request's id, as soon as it is ready
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	private void serveFrames(DataInputStream input, final OutputStream output) throws IOException
+	{
+		while (true) {
+			int length = input.readInt();
+			if (length <= 0 || length > Message.MAX_FRAME)
+				return;
+			byte[] body = new byte[length];
+			input.readFully(body);
+			final Message request = Message.fromFrame(ByteBuffer.wrap(body));
+			if (request == null)
+				return;
+			Scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					processAsync(local, request).whenComplete((response, e) -> {
+						if (response == null)
+							response = new Message(Message.NOTHING);
+						ByteBuffer frame = response.toFrame(request.getReqId());
+						try {
+							synchronized (output) {
+								output.write(frame.array(), 0, frame.limit());
+								output.flush();
+							}
+						} catch (IOException ex) {
+							// peer is gone, reader loop will notice
+						}
+					});
+				}
+			});
 		}
 	}
 
-	private String processRequest(String request)
+	/**
+	 * Process one request in text form on behalf of local node
+	 * @param local: node serving the request
+	 * @param request
+	 * @return response in text form, null if request cannot be answered
+	 */
+	static String processRequest(Node local, String request)
+	{
+		Message response = processRequest(local, Message.parseText(request));
+		if (response == null)
+			return null;
+		return response.toText();
+	}
+
+	/**
+	 * Process one request on behalf of local node, without holding the
+	 * calling thread while a recursive lookup waits for its owner's reply
+	 * @param local: node serving the request
+	 * @param request
+	 * @return future of the response, completed with null if request
+	 * cannot be answered
+	 */
+	static CompletableFuture<Message> processAsync(Node local, Message request)
+	{
+		if (request != null && request.getType() == Message.RLOOKUP)
+			return local.findSuccessorRecursive(request.getId());
+		return CompletableFuture.completedFuture(processRequest(local, request));
+	}
+
+	/**
+	 * Process one request on behalf of local node
+	 * @param local: node serving the request
+	 * @param request
+	 * @return response, null if request cannot be answered
+	 */
+	static Message processRequest(Node local, Message request)
 	{
-		InetSocketAddress result = null;
-		String ret = null;
+		NodeRef result = null;
+		Message ret = null;
 		if (request  == null) {
 			return null;
 		}
-		if (request.startsWith("CLOSEST")) {
-			long id = Long.parseLong(request.split("_")[1]);
-			result = local.closest_preceding_finger(id);
-			String ip = result.getAddress().toString();
-			int port = result.getPort();
-			ret = "MYCLOSEST_"+ip+":"+port;
-		}
-		else if (request.startsWith("YOURSUCC")) {
-			result =local.getSuccessor();
-			if (result != null) {
-				String ip = result.getAddress().toString();
-				int port = result.getPort();
-				ret = "MYSUCC_"+ip+":"+port;
-			}
-			else {
-				ret = "NOTHING";
-			}
-		}
-		else if (request.startsWith("YOURPRE")) {
-			result =local.getPredecessor();
-			if (result != null) {
-				String ip = result.getAddress().toString();
-				int port = result.getPort();
-				ret = "MYPRE_"+ip+":"+port;
-			}
-			else {
-				ret = "NOTHING";
-			}
-		}
-		else if (request.startsWith("FINDSUCC")) {
-			long id = Long.parseLong(request.split("_")[1]);
-			result = local.find_successor(id);
-			String ip = result.getAddress().toString();
-			int port = result.getPort();
-			ret = "FOUNDSUCC_"+ip+":"+port;
-		}
-		else if (request.startsWith("IAMPRE")) {
-			InetSocketAddress new_pre = Helper.createSocketAddress(request.split("_")[1]);
-			local.notified(new_pre);
-			ret = "NOTIFIED";
-		}
-		else if (request.startsWith("KEEP")) {
-			ret = "ALIVE";
+		switch (request.getType()) {
+		case Message.CLOSEST:
+			result = local.closest_preceding_finger(request.getId());
+			ret = new Message(Message.MYCLOSEST, result);
+			break;
+		case Message.YOURSUCC:
+			result = local.getSuccessor();
+			if (result != null)
+				ret = new Message(Message.MYSUCC, result);
+			else
+				ret = new Message(Message.NOTHING);
+			break;
+		case Message.YOURPRE:
+			result = local.getPredecessor();
+			if (result != null)
+				ret = new Message(Message.MYPRE, result);
+			else
+				ret = new Message(Message.NOTHING);
+			break;
+		case Message.FINDSUCC:
+			result = local.find_successor(request.getId());
+			ret = new Message(Message.FOUNDSUCC, result);
+			break;
+		case Message.IAMPRE:
+			if (request.getAddress() == null)
+				break;
+			local.notified(request.getAddress());
+			ret = new Message(Message.NOTIFIED);
+			break;
+		case Message.KEEP:
+			ret = new Message(Message.ALIVE);
+			break;
+		case Message.YOURSUCCLIST:
+			ret = new Message(Message.MYSUCCLIST, local.getSuccessorList());
+			break;
+		case Message.YOURFINGERS:
+			ret = new Message(Message.MYFINGERS, local.getKnownNodes());
+			break;
+		case Message.RFINDSUCC:
+			if (request.getAddress() == null)
+				break;
+
+			// next hop is sent without waiting for it
+			local.routeRecursive(request);
+			ret = new Message(Message.ACCEPTED);
+			break;
+		case Message.RFOUND:
+			local.recursiveFound(request);
+			ret = new Message(Message.ACCEPTED);
+			break;
+		case Message.CLOSESTLIST:
+			result = local.getSuccessor();
+			if (result != null)
+				ret = new Message(Message.MYCLOSESTLIST, 0, result, 
+						local.closest_preceding_fingers(request.getId(), Message.MAX_CANDIDATES));
+			else
+				ret = new Message(Message.NOTHING);
+			break;
+		case Message.FINDSUCCS:
+
+			// reply distinct owners only, the asker matches ids to them
+			LinkedHashSet<NodeRef> owners = new LinkedHashSet<NodeRef>(
+					Arrays.asList(local.find_successors(request.getIds())));
+			ret = new Message(Message.FOUNDSUCCS, owners.toArray(new NodeRef[owners.size()]));
+			break;
+		case Message.PUT:
+		case Message.GET:
+		case Message.DEL:
+			if (request.getKey() == null || (request.getType() == Message.PUT && request.getValue() == null))
+				break;
+			ret = local.storeRequest(request);
+			break;
+		case Message.GIVEKEYS:
+			if (request.getValue() == null)
+				break;
+			ret = new Message(local.storePage(request) ? Message.ACCEPTED : Message.NOTHING);
+			break;
+		case Message.READ:
+			if (request.getKey() == null)
+				break;
+			ret = local.readLocal(request.getKey());
+			break;
+		case Message.REPLICATE:
+			if (request.getValue() == null)
+				break;
+			ret = new Message(local.storeReplicas(request) ? Message.ACCEPTED : Message.NOTHING);
+			break;
+		case Message.LEAVING:
+			if (request.getAddress() == null || request.getList().length != 1)
+				break;
+			local.left(request.getList()[0], request.getAddress());
+			ret = new Message(Message.ACCEPTED);
+			break;
+		case Message.RLOOKUP:
+
+			// callers serving many requests use processAsync instead
+			ret = local.findSuccessorRecursive(request.getId()).join();
+			break;
 		}
 		return ret;
 	}
-}
\ No newline at end of file
+}